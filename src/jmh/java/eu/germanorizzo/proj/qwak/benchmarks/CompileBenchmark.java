@@ -0,0 +1,93 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.benchmarks;
+
+import eu.germanorizzo.proj.qwak.Evaluator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileBenchmark {
+    static final String SHORT = "%a + 1";
+
+    static final String MEDIUM = "(toNum(substr($code, 0, 3)) * 2 + %amount >= 100 && startsWith($country, \"IT\")) "
+            + "|| (len(trim($name)) > 3 && ~?blocked && max(%a, %b) - min(%a, %b) < pow(2, 10))";
+
+    // roughly 10k tokens, built from a chunk with 20 tokens
+    static final String LARGE = generate(10_000);
+
+    static String generate(int tokens) {
+        final String chunk = "(%a + 3) * %b - toNum(\"12\") + abs(%c) rem 7 + ";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < tokens / 20; i++)
+            sb.append(chunk);
+        sb.append('1');
+        return sb.toString();
+    }
+
+    @Param({"SHORT", "MEDIUM", "LARGE"})
+    public String size;
+
+    private String expression;
+    private byte[] saved;
+
+    @Setup
+    public void setUp() throws ParseException, IOException {
+        switch (size) {
+            case "SHORT":
+                expression = SHORT;
+                break;
+            case "MEDIUM":
+                expression = MEDIUM;
+                break;
+            default:
+                expression = LARGE;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Evaluator.compile(expression).writeTo(out);
+        saved = out.toByteArray();
+    }
+
+    @Benchmark
+    public Evaluator compile() throws ParseException {
+        return Evaluator.compile(expression);
+    }
+
+    // loading the compiled form saved by writeTo(), instead of parsing
+    @Benchmark
+    public Evaluator load() throws ParseException {
+        return Evaluator.readFrom(ByteBuffer.wrap(saved));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.benchmarks;
+
+import eu.germanorizzo.proj.qwak.Bindings;
+import eu.germanorizzo.proj.qwak.Evaluator;
+import eu.germanorizzo.proj.qwak.internals.EvalException;
+import eu.germanorizzo.proj.qwak.internals.Operand;
+import org.openjdk.jmh.annotations.*;
+
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvaluateBenchmark {
+    private final Map<String, String> variables = new HashMap<>();
+
+    @Param({"INTERPRETED", "BYTECODE"})
+    public String mode;
+
+    private Evaluator constant;
+    private Evaluator arithmetic;
+    private Bindings arithmeticBindings;
+    // same expression, in DOUBLE mode
+    private Evaluator arithmeticDouble;
+    private Bindings arithmeticDoubleBindings;
+    private Evaluator strings;
+    private Evaluator comparisons;
+    private Evaluator logical;
+    // 1024 rows, evaluated in a batch
+    private Object[] logicalColumns;
+    private Operand[] logicalOutput;
+    private Evaluator mixed;
+    private Bindings mixedBindings;
+
+    @Setup
+    public void setUp() throws ParseException {
+        variables.put("a", "12.5");
+        variables.put("b", "3");
+        variables.put("c", "-7");
+        variables.put("amount", "250.75");
+        variables.put("code", "123-ABC-456");
+        variables.put("country", "IT");
+        variables.put("name", "  Qwak  ");
+        variables.put("enabled", "true");
+        variables.put("blocked", "0");
+
+        constant = compile("1");
+        arithmetic = compile("(%a + %b) * %c / 4 - %b * 2");
+        arithmeticBindings = arithmetic.newBindings().setNumber(0, 12.5).setNumber(1, 3L).setNumber(2, -7L);
+        arithmeticDouble = Evaluator.compile("(%a + %b) * %c / 4 - %b * 2", Evaluator.Option.DOUBLE);
+        arithmeticDoubleBindings = arithmeticDouble.newBindings().setNumber(0, 12.5).setNumber(1, 3L)
+                .setNumber(2, -7L);
+        strings = compile("contains(substr($code, 4, 7), \"AB\")");
+        comparisons = compile("%amount >= 100");
+        logical = compile("?enabled && ~?blocked || ?blocked");
+        boolean[] enabled = new boolean[1024], blocked = new boolean[1024];
+        for (int i = 0; i < enabled.length; i++) {
+            enabled[i] = i % 3 != 0;
+            blocked[i] = i % 7 == 0;
+        }
+        logicalColumns = new Object[]{enabled, blocked};
+        logicalOutput = new Operand[enabled.length];
+        mixed = compile(CompileBenchmark.MEDIUM);
+        mixedBindings = mixed.newBindings();
+        variables.forEach(mixedBindings::set);
+    }
+
+    private Evaluator compile(String expression) throws ParseException {
+        if ("BYTECODE".equals(mode))
+            return Evaluator.compile(expression, Evaluator.Option.BYTECODE);
+        return Evaluator.compile(expression);
+    }
+
+    @Benchmark
+    public Operand constant() throws EvalException {
+        return constant.evaluate(variables);
+    }
+
+    @Benchmark
+    public Operand arithmetic() throws EvalException {
+        return arithmetic.evaluate(variables);
+    }
+
+    @Benchmark
+    public double arithmeticBindings() throws EvalException {
+        return arithmetic.evaluateDouble(arithmeticBindings);
+    }
+
+    @Benchmark
+    public double arithmeticDouble() throws EvalException {
+        return arithmeticDouble.evaluateDouble(arithmeticDoubleBindings);
+    }
+
+    @Benchmark
+    public Operand strings() throws EvalException {
+        return strings.evaluate(variables);
+    }
+
+    @Benchmark
+    public Operand comparisons() throws EvalException {
+        return comparisons.evaluate(variables);
+    }
+
+    @Benchmark
+    public Operand logical() throws EvalException {
+        return logical.evaluate(variables);
+    }
+
+    @Benchmark
+    public Operand[] logicalBatch() throws EvalException {
+        logical.evaluateBatch(logicalColumns, logicalOutput.length, logicalOutput);
+        return logicalOutput;
+    }
+
+    @Benchmark
+    public Operand mixed() throws EvalException {
+        return mixed.evaluate(variables);
+    }
+
+    @Benchmark
+    public Operand mixedBindings() throws EvalException {
+        return mixed.evaluate(mixedBindings);
+    }
+}
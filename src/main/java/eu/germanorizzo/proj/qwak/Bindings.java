@@ -0,0 +1,196 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.*;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+// The values of the variables of an Evaluator, by slot (see
+// Evaluator.variableSlots()). They are converted to the type of the variable
+// when set (typed values with the same rules as VariableSource.of()), and then
+// accessed by index during the evaluation. Create them with
+// Evaluator.newBindings(); they can be reused, but are not thread safe.
+// Numbers and booleans set as primitives are kept as such, and converted to
+// operands only if needed: the DOUBLE and LONG modes read them directly.
+public final class Bindings implements PrimitiveResolver {
+    private static final byte OPERAND = 0, LONG = 1, DOUBLE = 2;
+
+    private final Variable[] variables;
+    private final Operand[] values;
+    // for the slots set as primitives, the value (doubles as raw bits, booleans
+    // as 0 and 1) and its kind
+    private final long[] raw;
+    private final byte[] kinds;
+
+    Bindings(Variable[] variables) {
+        this.variables = variables;
+        this.values = new Operand[variables.length];
+        this.raw = new long[variables.length];
+        this.kinds = new byte[variables.length];
+    }
+
+    boolean isFor(Variable[] variables) {
+        return this.variables == variables;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    // Fails with a NumberFormatException if a number is not valid
+    public Bindings set(int slot, String value) {
+        try {
+            values[slot] = variables[slot].decode(value);
+        } catch (EvalException e) {
+            throw new NumberFormatException(e.getMessage());
+        }
+        kinds[slot] = OPERAND;
+        return this;
+    }
+
+    public Bindings setNumber(int slot, BigDecimal value) {
+        return setTyped(slot, value);
+    }
+
+    public Bindings setNumber(int slot, long value) {
+        if (variables[slot].getType() != ValuedItem.Type.NUM)
+            return setTyped(slot, BigDecimal.valueOf(value));
+        return setRaw(slot, value, LONG);
+    }
+
+    // Fails with an IllegalArgumentException if the value is NaN or infinite,
+    // so the doubles kept raw are always finite
+    public Bindings setNumber(int slot, double value) {
+        if (!Double.isFinite(value))
+            throw new IllegalArgumentException("Not a finite number: " + value);
+        if (variables[slot].getType() != ValuedItem.Type.NUM)
+            return setTyped(slot, BigDecimal.valueOf(value));
+        return setRaw(slot, Double.doubleToRawLongBits(value), DOUBLE);
+    }
+
+    public Bindings setString(int slot, String value) {
+        return setTyped(slot, value);
+    }
+
+    public Bindings setBoolean(int slot, boolean value) {
+        if (variables[slot].getType() != ValuedItem.Type.BOOL)
+            return setTyped(slot, value);
+        return setRaw(slot, value ? 1 : 0, LONG);
+    }
+
+    private Bindings setRaw(int slot, long value, byte kind) {
+        values[slot] = null;
+        raw[slot] = value;
+        kinds[slot] = kind;
+        return this;
+    }
+
+    private Bindings setTyped(int slot, Object value) {
+        try {
+            values[slot] = MapVariableSource.toOperand(variables[slot], value);
+        } catch (EvalException e) {
+            throw new NumberFormatException(e.getMessage());
+        }
+        kinds[slot] = OPERAND;
+        return this;
+    }
+
+    // Sets all the slots of variables with this name, whatever their type
+    public Bindings set(String name, String value) {
+        for (int i = 0; i < variables.length; i++)
+            if (variables[i].getId().equals(name))
+                set(i, value);
+        return this;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        Arrays.fill(kinds, OPERAND);
+    }
+
+    @Override
+    public Operand resolve(Variable variable) {
+        int slot = variable.getSlot();
+        Operand ret = values[slot];
+        if (ret == null && kinds[slot] != OPERAND) {
+            if (variable.getType() == ValuedItem.Type.BOOL)
+                ret = Operand.boolItem(raw[slot] != 0);
+            else if (kinds[slot] == LONG)
+                ret = Operand.numItem(raw[slot]);
+            else
+                ret = Operand.numItem(BigDecimal.valueOf(Double.longBitsToDouble(raw[slot])));
+            values[slot] = ret;
+        }
+        return ret == null ? Operand.NULL : ret;
+    }
+
+    @Override
+    public double resolveDouble(Variable variable) throws EvalException {
+        int slot = variable.getSlot();
+        switch (kinds[slot]) {
+            case LONG:
+                return raw[slot];
+            case DOUBLE:
+                return Double.longBitsToDouble(raw[slot]);
+            default:
+                return number(variable).doubleValue();
+        }
+    }
+
+    @Override
+    public long resolveLong(Variable variable) throws EvalException {
+        int slot = variable.getSlot();
+        if (kinds[slot] == LONG)
+            return raw[slot];
+        try {
+            if (kinds[slot] == DOUBLE)
+                return BigDecimal.valueOf(Double.longBitsToDouble(raw[slot])).longValueExact();
+            return number(variable).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new EvalException(EvalException.Code.CONVERSION,
+                    "Variable " + variable.getPrefix() + variable.getId() + " is not a long integer");
+        }
+    }
+
+    @Override
+    public boolean resolveBoolean(Variable variable) throws EvalException {
+        int slot = variable.getSlot();
+        if (kinds[slot] == LONG)
+            return raw[slot] != 0;
+        Operand value = resolve(variable);
+        if (value.getType() != ValuedItem.Type.BOOL)
+            throw PrimitiveProgram.notSet(variable);
+        return value == Operand.TRUE;
+    }
+
+    private BigDecimal number(Variable variable) throws EvalException {
+        Operand value = resolve(variable);
+        if (value.getType() != ValuedItem.Type.NUM)
+            throw PrimitiveProgram.notSet(variable);
+        return (BigDecimal) value.getValue();
+    }
+}
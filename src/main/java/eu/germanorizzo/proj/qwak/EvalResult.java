@@ -0,0 +1,91 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.EvalException;
+import eu.germanorizzo.proj.qwak.internals.Operand;
+
+// The outcome of Evaluator.tryEvaluate(): the value, or the code and the
+// message of the failure
+public final class EvalResult {
+    // the results of predicates are shared
+    private static final EvalResult TRUE = new EvalResult(Operand.TRUE, null, null);
+    private static final EvalResult FALSE = new EvalResult(Operand.FALSE, null, null);
+    private static final EvalResult NULL = new EvalResult(Operand.NULL, null, null);
+
+    private final Operand value;
+    private final EvalException.Code error;
+    private final String message;
+
+    private EvalResult(Operand value, EvalException.Code error, String message) {
+        this.value = value;
+        this.error = error;
+        this.message = message;
+    }
+
+    static EvalResult of(Operand value) {
+        if (value == Operand.TRUE)
+            return TRUE;
+        if (value == Operand.FALSE)
+            return FALSE;
+        if (value == Operand.NULL)
+            return NULL;
+        return new EvalResult(value, null, null);
+    }
+
+    static EvalResult failed(EvalException e) {
+        return new EvalResult(null, e.getCode(), e.getMessage());
+    }
+
+    public boolean isOk() {
+        return error == null;
+    }
+
+    // null if failed
+    public Operand getValue() {
+        return value;
+    }
+
+    // null if not failed
+    public EvalException.Code getError() {
+        return error;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    // The value, or the failure as an exception
+    public Operand get() throws EvalException {
+        if (error != null)
+            throw new EvalException(error, message);
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return error == null ? String.valueOf(value.getValue()) : error + ": " + message;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.EvalException;
+
+import java.util.Map;
+
+// A record whose evaluation failed, with the reason
+public final class EvaluationFailure {
+    private final Map<String, String> record;
+    private final EvalException exception;
+
+    EvaluationFailure(Map<String, String> record, EvalException exception) {
+        this.record = record;
+        this.exception = exception;
+    }
+
+    public Map<String, String> getRecord() {
+        return record;
+    }
+
+    public EvalException getException() {
+        return exception;
+    }
+}
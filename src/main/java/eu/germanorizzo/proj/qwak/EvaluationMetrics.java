@@ -0,0 +1,121 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.EvalException;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// A listener that keeps statistics: the number of compilations and
+// evaluations, the latencies of the evaluations and the errors by code. Set
+// one on every Evaluator to compare them, or one on all of them for global
+// figures.
+public final class EvaluationMetrics implements EvaluationListener {
+    private static final EvalException.Code[] CODES = EvalException.Code.values();
+
+    private final LongAdder compilations = new LongAdder();
+    private final LongAdder compileNanos = new LongAdder();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder evaluateNanos = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    // by the ordinal of the code
+    private final LongAdder[] errorsByCode = new LongAdder[CODES.length];
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    public EvaluationMetrics() {
+        for (int i = 0; i < errorsByCode.length; i++)
+            errorsByCode[i] = new LongAdder();
+    }
+
+    @Override
+    public void compiled(Evaluator evaluator, String expression, long nanos) {
+        compilations.increment();
+        compileNanos.add(nanos);
+    }
+
+    @Override
+    public void evaluated(Evaluator evaluator, long nanos) {
+        evaluations.increment();
+        evaluateNanos.add(nanos);
+        latencies.record(nanos);
+    }
+
+    @Override
+    public void failed(Evaluator evaluator, EvalException error, long nanos) {
+        evaluated(evaluator, nanos);
+        errors.increment();
+        errorsByCode[error.getCode().ordinal()].increment();
+    }
+
+    public long getCompilations() {
+        return compilations.sum();
+    }
+
+    public long getCompileNanos() {
+        return compileNanos.sum();
+    }
+
+    // failed ones included
+    public long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    public long getEvaluateNanos() {
+        return evaluateNanos.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    // only the codes of the errors that happened
+    public Map<EvalException.Code, Long> getErrorsByCode() {
+        Map<EvalException.Code, Long> ret = new EnumMap<>(EvalException.Code.class);
+        for (EvalException.Code code : CODES) {
+            long count = errorsByCode[code.ordinal()].sum();
+            if (count > 0)
+                ret.put(code, count);
+        }
+        return Collections.unmodifiableMap(ret);
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public void reset() {
+        compilations.reset();
+        compileNanos.reset();
+        evaluations.reset();
+        evaluateNanos.reset();
+        errors.reset();
+        for (LongAdder counter : errorsByCode)
+            counter.reset();
+        latencies.reset();
+    }
+}
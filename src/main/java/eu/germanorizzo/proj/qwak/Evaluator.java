@@ -25,362 +25,676 @@
 package eu.germanorizzo.proj.qwak;
 
 import eu.germanorizzo.proj.qwak.internals.*;
-
+import eu.germanorizzo.proj.qwak.internals.compiler.CompiledProgram;
+import eu.germanorizzo.proj.qwak.internals.compiler.ProgramCompiler;
+import eu.germanorizzo.proj.qwak.internals.jfr.CompileEvent;
+import eu.germanorizzo.proj.qwak.internals.jfr.EvalErrorEvent;
+import eu.germanorizzo.proj.qwak.internals.jfr.EvaluateEvent;
+
+import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Evaluator {
-    private static final String LITERAL_PLACEHOLDER = "######";
-    private static final int LITERAL_PLACEHOLDER_DIM = LITERAL_PLACEHOLDER
-            .length();
-    private static final String VARIABLE_PLACEHOLDER = "@#@@#@@#@@@#@@@";
-    private static final String NULL_CONST = "NULL";
-    private static final String TRUE_CONST = "true";
-    private static final String FALSE_CONST = "false";
-    private static final char SPACE = ' ';
+    public enum Option {
+        // Translates the expression to JVM bytecode, in a hidden class. Compilation
+        // is slower, but the evaluation of hot expressions is much faster. Expressions
+        // too big to be JIT-compiled are interpreted anyway.
+        BYTECODE,
+        // Evaluates the expression on primitive doubles (or longs, failing on
+        // overflows and inexact divisions) instead of BigDecimals. Only numbers and
+        // booleans are allowed; compilation fails for strings, NULL and operations
+        // on them.
+        DOUBLE,
+        LONG,
+        // Interprets the expression (instead of BYTECODE) recording the
+        // invocations and the time of each operator, see getProfile(). It can't
+        // be combined with DOUBLE or LONG, as BigDecimals would give other
+        // results: that fails with an IllegalArgumentException.
+        PROFILE,
+        // Fails the compilation of operations that can't be performed on the
+        // types their operands may have (f.e. 1 && true), instead of failing
+        // when they're evaluated
+        STRICT
+    }
 
     public static Evaluator compile(String expression) throws ParseException {
+        return compile(expression, new Option[0]);
+    }
+
+    public static Evaluator compile(String expression, Option... options) throws ParseException {
+        EvaluationListener listener = defaultListener;
+        long start = listener == null ? 0 : System.nanoTime();
+        CompileEvent event = new CompileEvent();
+        event.begin();
         Evaluator ret = new Evaluator();
-        ret.items = parse(expression);
+        List<Integer> offsets = new ArrayList<>();
+        ret.items = parse(expression, event, Arrays.asList(options).contains(Option.STRICT), offsets);
+        ret.variables = assignSlots(ret.items);
+        ret.maxDepth = Optimizer.maxDepth(ret.items);
+        ret.localSlots = CommonSubexpressions.slots(ret.items);
+        ret.apply(offsets, options);
+        event.end();
+        if (event.shouldCommit()) {
+            event.expressionId = ret.id;
+            event.expressionLength = expression.length();
+            event.commit();
+        }
+        if (listener != null)
+            listener.compiled(ret, expression, System.nanoTime() - start);
         return ret;
     }
 
-    private Evaluator() {
+    // Loads an expression saved by writeTo(), from the current position of the
+    // buffer; the user functions it calls must be registered.
+    public static Evaluator readFrom(ByteBuffer in, Option... options) throws ParseException {
+        ProgramFormat.Program program = ProgramFormat.read(in);
+        Evaluator ret = new Evaluator();
+        ret.items = program.items;
+        ret.variables = program.variables;
+        ret.maxDepth = program.maxDepth;
+        ret.localSlots = program.localSlots;
+        // the offsets of the items aren't saved
+        return ret.apply(null, options);
     }
 
-    private Item[] items;
+    // Saves the compiled expression, without the options
+    public void writeTo(OutputStream out) throws IOException {
+        ProgramFormat.write(items, variables, maxDepth, localSlots, out);
+    }
 
-    private static boolean isNumeric(String string) {
-        try {
-            Float.parseFloat(string);
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
+    // The offsets of the items in the expression, if known, are for the errors
+    private Evaluator apply(List<Integer> offsets, Option... options) throws ParseException {
+        List<Option> list = Arrays.asList(options);
+        if (list.contains(Option.PROFILE) && (list.contains(Option.DOUBLE) || list.contains(Option.LONG)))
+            throw new IllegalArgumentException("PROFILE can't be combined with DOUBLE or LONG");
+        listener = defaultListener;
+        for (Option option : options)
+            switch (option) {
+                case BYTECODE:
+                    program = ProgramCompiler.compile(items);
+                    break;
+                case DOUBLE:
+                    primitive = PrimitiveProgram.compile(items, offsets, PrimitiveProgram.Mode.DOUBLE);
+                    break;
+                case LONG:
+                    primitive = PrimitiveProgram.compile(items, offsets, PrimitiveProgram.Mode.LONG);
+                    break;
+                case PROFILE:
+                    profile = new OperatorProfile();
+                    break;
+            }
+        if (profile != null) {
+            program = null;
+            items = profile.instrument(items);
         }
+        return this;
     }
 
-    private static boolean isVariable(String string) {
-        return string.charAt(0) == '$' || string.charAt(0) == '%' || string.charAt(0) == '?';
+    private Evaluator() {
     }
 
-    private static Item getItem(String token, List<String> literals)
-            throws ParseException {
-        token = token.trim();
-        if (token.startsWith(LITERAL_PLACEHOLDER)) { //literal
-            int pos = Integer.parseInt(token.substring(LITERAL_PLACEHOLDER_DIM));
-            return Operand.strItem(literals.get(pos));
-        }
-
-        if (token.startsWith("%")) //variable
-            return new Variable(ValuedItem.Type.NUM, token.substring(1));
-        if (token.startsWith("$")) //variable
-            return new Variable(ValuedItem.Type.STRING, token.substring(1));
-        if (token.startsWith("?")) //variable
-            return new Variable(ValuedItem.Type.BOOL, token.substring(1));
+    private static final AtomicLong IDS = new AtomicLong();
 
-        if (NULL_CONST.equals(token))
-            return Operand.NULL;
-        if (TRUE_CONST.equalsIgnoreCase(token))
-            return Operand.TRUE;
-        if (FALSE_CONST.equalsIgnoreCase(token))
-            return Operand.FALSE;
-
-        Operations op = Operations.getOperation(token);
-        if (op != null)
-            return op;
+    // to tell the evaluators apart in the JFR events
+    private final long id = IDS.incrementAndGet();
+    private Item[] items;
+    // one for each slot
+    private Variable[] variables;
+    private int maxDepth;
+    private int localSlots;
+    private CompiledProgram program;
+    private PrimitiveProgram primitive;
+    // null unless compiled with Option.PROFILE
+    private OperatorProfile profile;
+    // null unless instrumented, see EvaluationListener
+    private EvaluationListener listener;
+
+    private static volatile EvaluationListener defaultListener;
+
+    // For the evaluators compiled (or loaded) from now on, and their compilation;
+    // null to stop
+    public static void setDefaultListener(EvaluationListener listener) {
+        defaultListener = listener;
+    }
 
-        try {
-            BigDecimal bd = new BigDecimal(token);
-            return Operand.numItem(bd);
-        } catch (NumberFormatException e) {
-            throw new ParseException("Invalid numeric value: " + token, 0);
-        }
+    // Replaces the listener; null to stop. It should be set before sharing the
+    // evaluator among threads.
+    public void setListener(EvaluationListener listener) {
+        this.listener = listener;
+    }
 
-        // throw new ParseException("Unknown literal: " + token, 0);
-    }
-
-    // FIXME In this method there are many conversion between String and
-    // StringBuilder, and some invocations of String.replace(). This
-    // causes the same string to be walked multiple times, and many String
-    // objects to be created. This operation is done once per eu.germanorizzo.proj.qwak.Evaluator
-    // lifecycle, so it's not super-serious to fix it, but it's desirable to
-    // create a StringBuilder and do the various operations in place, even
-    // better (but difficult) in one sweep.
-    private static Item[] parse(String expression) throws ParseException {
-        // extracts the literal strings (delimited by an unescaped " or ') and
-        // puts a placeholder instead of them
-        List<String> strLiterals = new ArrayList<>();
-
-        StringBuilder expr = new StringBuilder();
-        StringBuilder str = null;
-        int position = 0;
-        boolean insideLiteral = false, isEscaped = false;
-        char quotesUsedForLiteral = ' ';
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
-            if (isEscaped) {
-                if (insideLiteral)
-                    str.append(c);
-                else
-                    expr.append(c);
-                isEscaped = false;
-                continue;
-            }
-            if (c == '\\') {
-                isEscaped = true;
-                continue;
+    // Gives the same slot to all the references to a variable (with the same
+    // type), in order of appearance
+    private static Variable[] assignSlots(Item[] items) {
+        Map<String, Variable> slots = new LinkedHashMap<>();
+        for (Item item : items)
+            if (item instanceof Variable) {
+                Variable var = (Variable) item;
+                Variable first = slots.putIfAbsent(var.getPrefix() + var.getId(), var);
+                var.setSlot(first == null ? slots.size() - 1 : first.getSlot());
             }
-            if (c == '"' || c == '\'') {
-                if (!insideLiteral) {
-                    str = new StringBuilder();
-                    insideLiteral = true;
-                    quotesUsedForLiteral = c;
-                    continue;
-                }
+        return slots.values().toArray(new Variable[0]);
+    }
 
-                if (c == quotesUsedForLiteral) {
-                    strLiterals.add(str.toString());
-                    expr.append(SPACE);
-                    expr.append(LITERAL_PLACEHOLDER);
-                    expr.append(position++);
-                    expr.append(SPACE);
-                    insideLiteral = false;
-                    continue;
-                }
-            }
-            if (insideLiteral)
-                str.append(c);
-            else
-                expr.append(c);
-        }
+    // The variables referenced by the expression, with their prefix, in the
+    // order of their slots
+    public List<String> variableSlots() {
+        List<String> ret = new ArrayList<>(variables.length);
+        for (Variable var : variables)
+            ret.add(var.getPrefix() + var.getId());
+        return Collections.unmodifiableList(ret);
+    }
 
-        if (insideLiteral)
-            throw new ParseException("String literal not properly closed", 0);
-
-        // if an expression ends with a variable, the parsing cycle later on ends
-        // without the final evaluation, so it's wrong. Appending a space ensures
-        // that it is properly concluded. Dirty-ish, but it works.
-        expr.append(' ');
-        expression = expr.toString();
-
-        //extract the variables (from a '$' to the next non-literal) and put a
-        //placeholder instead of them
-        List<String> varLiterals = new ArrayList<>();
-
-        expr = new StringBuilder();
-        str = null;
-        position = 0;
-        insideLiteral = false;
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
-            if (!insideLiteral && (c == '$')) {
-                insideLiteral = true;
-                str = new StringBuilder();
-            } else if (insideLiteral && (!isAllowedForVarName(c)
-                    || i > expression.length() - 1)) {
-                insideLiteral = false;
-                varLiterals.add(str.toString());
-                expr.append(SPACE);
-                expr.append(VARIABLE_PLACEHOLDER);
-                expr.append(position++);
-                expr.append(SPACE);
-            }
-            if (insideLiteral)
-                str.append(c);
-            else
-                expr.append(c);
-        }
+    Item[] items() {
+        return items;
+    }
 
-        expression = expr.toString();
+    public long getId() {
+        return id;
+    }
 
-        //check that brackets are balanced
-        int bracketsLevel = 0;
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
-            if (c == '(')
-                bracketsLevel++;
-            else if (c == ')')
-                bracketsLevel--;
-        }
-        if (bracketsLevel != 0)
-            throw new ParseException("Unbalanced brackets", 0);
-
-        //preprocess
-        for (Operations op : Operations.values())
-            expression = expression.replace(op.literal, " " + op.literal + " ");
-
-        //replace back the variables
-        for (int i = 0; i < varLiterals.size(); i++)
-            expression = expression.replace(VARIABLE_PLACEHOLDER + i,
-                    varLiterals.get(i));
-
-        StringTokenizer st = new StringTokenizer(expression, " ");
-        List<String> tokenized = new ArrayList<>();
-        while (st.hasMoreTokens())
-            tokenized.add(st.nextToken().trim());
-        for (int i = 0; i < tokenized.size(); i++) {
-            String current = tokenized.get(i);
-            if ("-".equals(current)) {
-                boolean isUnaryMinus = false;
-                if (i == 0) {
-                    isUnaryMinus = true;
-                } else {
-                    if (isNumeric(tokenized.get(i + 1))) {
-                        String prev = tokenized.get(i - 1);
+    // null if not compiled with Option.PROFILE
+    public OperatorProfile getProfile() {
+        return profile;
+    }
 
-                        isUnaryMinus = !(prev.equals(")") || isNumeric(prev)
-                                || isVariable(prev));
-                    }
-                }
-                if (isUnaryMinus) {
-                    tokenized.set(i, tokenized.get(i) + tokenized.get(i + 1));
-                    tokenized.remove(i + 1);
-                }
-            } else
-                //compensates for '>=', '<=', '!=' ambiguity with '>', '<', '!'
-                if (">".equals(current) || "<".equals(current)
-                        || "!".equals(current)) {
-                    if ((i < tokenized.size() - 1)
-                            && "=".equals(tokenized.get(i + 1))) {
-                        tokenized.set(i, tokenized.get(i) + tokenized.get(i + 1));
-                        tokenized.remove(i + 1);
-                    }
-                }
-        }
+    public Bindings newBindings() {
+        return new Bindings(variables);
+    }
 
-        //now we have tokenList, with the tokens, and strLiterals, with the
-        //string literals. Some tokens are @#1, @#2, ... and must be substituted
-        //with the literals. Next thing is to apply the shunting yard algorithm
-        //(based on the 2nd pseudocode listing at www.chris-j.co.uk/parsing.php)
-        List<Item> output = new ArrayList<>();
-        Stack<Operations> stack = new Stack<>();
-        for (String token : tokenized) {
-            Item item = getItem(token, strLiterals);
+    private static int priority(Lexer.Token token) {
+        // user functions bind like the built-in ones
+        return token.item instanceof Operations ? ((Operations) token.item).priority : 3;
+    }
 
-            if (item instanceof Operand || item instanceof Variable) {
+    // Fills offsets with those of the items of the program in the expression
+    private static Item[] parse(String expression, CompileEvent event, boolean strict, List<Integer> offsets)
+            throws ParseException {
+        List<Lexer.Token> tokens = Lexer.tokenize(expression);
+        event.tokenCount = tokens.size();
+
+        // Apply the shunting yard algorithm (based on the 2nd pseudocode listing
+        // at www.chris-j.co.uk/parsing.php). The offsets of the tokens in the
+        // output are kept aside, to report errors.
+        List<Item> output = new ArrayList<>(tokens.size());
+        Stack<Lexer.Token> stack = new Stack<>();
+        Stack<Integer> openBrackets = new Stack<>();
+        for (Lexer.Token token : tokens) {
+            Item item = token.item;
+
+            if (item instanceof ValuedItem) {
                 output.add(item);
+                offsets.add(token.offset);
+                continue;
+            }
+
+            // a user function is a prefix, its arguments are between brackets
+            if (item instanceof UserFunction) {
+                stack.push(token);
                 continue;
             }
 
             Operations op = (Operations) item;
             if ((op == Operations.COMMA) || (op == Operations.CLOSE_BRACKET)) {
-                Operations cnt;
-                while ((cnt = stack.pop()) != Operations.OPEN_BRACKET)
-                    output.add(cnt);
+                if (openBrackets.isEmpty())
+                    throw new ParseException(op == Operations.COMMA ? "Comma outside of brackets"
+                            : "Unbalanced brackets", token.offset);
+                Lexer.Token cnt;
+                while ((cnt = stack.pop()).item != Operations.OPEN_BRACKET) {
+                    output.add(cnt.item);
+                    offsets.add(cnt.offset);
+                }
                 if (op == Operations.COMMA)
-                    stack.push(Operations.OPEN_BRACKET);
+                    stack.push(cnt);
+                else
+                    openBrackets.pop();
                 continue;
             }
 
+            if (op == Operations.OPEN_BRACKET)
+                openBrackets.push(token.offset);
+
             if (op.type == Operations.Type.UNARY_POSTFIX) {
                 output.add(op);
+                offsets.add(token.offset);
                 continue;
             }
 
             if (op.type == Operations.Type.UNARY_PREFIX) {
-                stack.push(op);
+                stack.push(token);
                 continue;
             }
 
-            if (op.type == Operations.Type.BINARY) {
+            if (op.type == Operations.Type.BINARY || op.type == Operations.Type.TERNARY) {
                 int priority = op.priority;
                 if (op.associativity == Operations.Associativity.LEFT) {
-                    while (!stack.isEmpty()
-                            && stack.peek().priority <= priority)
-                        output.add(stack.pop());
-                } else {
-                    while (!stack.isEmpty() && stack.peek().priority < priority)
-                        output.add(stack.pop());
-                }
-                stack.push(op);
-            }
-
-            if (op.type == Operations.Type.TERNARY) {
-                int priority = op.priority;
-                if (op.associativity == Operations.Associativity.LEFT) {
-                    while (!stack.isEmpty()
-                            && stack.peek().priority <= priority)
-                        output.add(stack.pop());
+                    while (!stack.isEmpty() && priority(stack.peek()) <= priority) {
+                        Lexer.Token popped = stack.pop();
+                        output.add(popped.item);
+                        offsets.add(popped.offset);
+                    }
                 } else {
-                    while (!stack.isEmpty() && stack.peek().priority < priority)
-                        output.add(stack.pop());
+                    while (!stack.isEmpty() && priority(stack.peek()) < priority) {
+                        Lexer.Token popped = stack.pop();
+                        output.add(popped.item);
+                        offsets.add(popped.offset);
+                    }
                 }
-                stack.push(op);
+                stack.push(token);
             }
         }
 
-        while (!stack.isEmpty())
-            output.add(stack.pop());
+        if (!openBrackets.isEmpty())
+            throw new ParseException("Unbalanced brackets", openBrackets.peek());
+
+        while (!stack.isEmpty()) {
+            Lexer.Token popped = stack.pop();
+            output.add(popped.item);
+            offsets.add(popped.offset);
+        }
 
         // Verify that the operators have the right number of operands. Every
         // operand or variable count as 1, and every operator "consumes" a certain
         // number of operands (2 if binary, ...) while producing one. In the end,
-        // exactly one operand should remain.
+        // exactly one operand should remain. Next to each operand, the offset
+        // where its subtree starts.
+        Stack<Integer> operands = new Stack<>();
+        for (int i = 0; i < output.size(); i++) {
+            int offset = offsets.get(i);
+            if (output.get(i) instanceof ValuedItem) {
+                operands.push(offset);
+                continue;
+            }
+            int opNum = ((Operator) output.get(i)).getArity();
+            if (operands.size() < opNum)
+                throw new ParseException("Wrong number of operands", offset);
+            for (int j = 0; j < opNum; j++)
+                offset = Math.min(offset, operands.pop());
+            operands.push(offset);
+        }
+
+        if (operands.size() != 1)
+            throw new ParseException("Wrong number of operands", operands.size() > 1 ? operands.get(1) : 0);
+
+        List<Item> optimized = Optimizer.optimize(output, offsets, strict);
+        return shortCircuit(CommonSubexpressions.eliminate(optimized, offsets), offsets);
+    }
+
+    // Inserts a Jump before the right operand of every AND and OR, so that it's
+    // not evaluated when the left operand is enough to know the result.
+    private static Item[] shortCircuit(List<Item> rpn, List<Integer> offsets) {
+        // for every position, the start of the subtree that ends there
+        int[] starts = new int[rpn.size()];
+        Jump[] jumpsBefore = new Jump[rpn.size()];
+        int[] jumpedOver = new int[rpn.size()];
+        Stack<Integer> stack = new Stack<>();
+        for (int i = 0; i < rpn.size(); i++) {
+            Item item = rpn.get(i);
+            int start = i;
+            if (item instanceof Operator) {
+                Operator op = (Operator) item;
+                for (int j = 0; j < op.getArity(); j++)
+                    start = stack.pop();
+                if (op == Operations.AND || op == Operations.OR) {
+                    int rightStart = starts[i - 1];
+                    jumpsBefore[rightStart] = new Jump(op == Operations.OR);
+                    jumpedOver[rightStart] = i;
+                }
+            } else if (item instanceof Store) {
+                // it's part of the subtree it stores
+                start = stack.pop();
+            }
+            starts[i] = start;
+            stack.push(start);
+        }
 
-        int freeOperands = 0;
-        for (Item i : output)
-            if (i instanceof ValuedItem)
-                freeOperands += 1;
-            else
-                freeOperands -= ((Operations) i).type.getOpNum() - 1;
+        List<Item> ret = new ArrayList<>();
+        List<Integer> retOffsets = new ArrayList<>();
+        int[] newPositions = new int[rpn.size()];
+        for (int i = 0; i < rpn.size(); i++) {
+            if (jumpsBefore[i] != null) {
+                ret.add(jumpsBefore[i]);
+                // where the AND or the OR is
+                retOffsets.add(offsets.get(jumpedOver[i]));
+            }
+            newPositions[i] = ret.size();
+            ret.add(rpn.get(i));
+            retOffsets.add(offsets.get(i));
+        }
+        offsets.clear();
+        offsets.addAll(retOffsets);
+        for (int i = 0; i < rpn.size(); i++)
+            if (jumpsBefore[i] != null)
+                jumpsBefore[i].setTarget(newPositions[jumpedOver[i]] + 1);
 
-        if (freeOperands != 1)
-            throw new ParseException("Wrong number of operands", 0);
+        return ret.toArray(new Item[]{});
+    }
 
-        return output.toArray(new Item[]{});
+    // The stack of the interpreter, one per thread and shared by all the
+    // evaluators. Every evaluation uses the slots above the ones of the
+    // evaluations in progress, so that a resolver can evaluate other
+    // expressions: first its stack, then its local slots.
+    private static final class OperandStack {
+        private Operand[] slots = new Operand[64];
+        private int top;
     }
 
-    private static boolean isAllowedForVarName(char c) {
-        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
-                || (c >= '0' && c <= '9') || (c == '_') || (c == '-');
+    private static final ThreadLocal<OperandStack> STACKS = ThreadLocal.withInitial(OperandStack::new);
+
+    // The JFR events cost nothing when they're not recorded: the JIT removes
+    // them, and the time is taken only if recording.
+    private Operand evaluateToOperand(VariableResolver variables) throws EvalException {
+        EvaluationListener listener = this.listener;
+        long start = listener == null ? 0 : System.nanoTime();
+        EvaluateEvent event = new EvaluateEvent();
+        event.begin();
+        try {
+            Operand ret = run(variables);
+            event.end();
+            if (event.shouldCommit()) {
+                event.expressionId = id;
+                event.resultType = ret.getType().name();
+                event.commit();
+            }
+            if (listener != null)
+                listener.evaluated(this, System.nanoTime() - start);
+            return ret;
+        } catch (EvalException e) {
+            EvalErrorEvent error = new EvalErrorEvent();
+            if (error.isEnabled()) {
+                error.expressionId = id;
+                error.message = e.getMessage();
+                error.commit();
+            }
+            if (listener != null)
+                listener.failed(this, e, System.nanoTime() - start);
+            throw e;
+        }
     }
 
-    private Operand evaluateToOperand(Map<String, String> variables) throws EvalException {
-        Stack<Item> stack = new Stack<>();
-        for (Item item : items) {
-            if (item instanceof Variable) {
-                if (variables == null) {
-                    stack.push(Operand.NULL);
-                    continue;
+    private Operand run(VariableResolver variables) throws EvalException {
+        if (profile != null)
+            variables = profile.instrument(variables);
+        if (primitive != null)
+            return primitive.run(variables);
+        if (program != null)
+            return program.run(variables);
+
+        OperandStack operandStack = STACKS.get();
+        int base = operandStack.top;
+        int size = maxDepth + localSlots;
+        if (base + size > operandStack.slots.length)
+            operandStack.slots = Arrays.copyOf(operandStack.slots, Math.max(base + size, operandStack.slots.length * 2));
+        Operand[] stack = operandStack.slots;
+        operandStack.top = base + size;
+        try {
+            int sp = base;
+            int locals = base + maxDepth;
+            for (int pc = 0; pc < items.length; pc++) {
+                Item item = items[pc];
+                if (item instanceof Jump) {
+                    Jump jump = (Jump) item;
+                    if (jump.isTaken(stack[sp - 1]))
+                        pc = jump.getTarget() - 1;
+                } else if (item instanceof Variable) {
+                    stack[sp++] = variables.resolve((Variable) item);
+                } else if (item instanceof Operand) {
+                    stack[sp++] = (Operand) item;
+                } else if (item instanceof Store) {
+                    stack[locals + ((Store) item).getSlot()] = stack[sp - 1];
+                } else if (item instanceof Load) {
+                    stack[sp++] = stack[locals + ((Load) item).getSlot()];
+                } else if (item instanceof Operator) {
+                    Operator op = (Operator) item;
+                    int arity = op.getArity();
+                    switch (arity) {
+                        case 1:
+                            stack[sp - 1] = op.getAction().perform(stack[sp - 1]);
+                            break;
+                        case 2:
+                            sp--;
+                            stack[sp - 1] = op.getAction().perform(stack[sp - 1], stack[sp]);
+                            break;
+                        case 3:
+                            sp -= 2;
+                            stack[sp - 1] = op.getAction().perform(stack[sp - 1], stack[sp], stack[sp + 1]);
+                            break;
+                        default:
+                            sp -= arity - 1;
+                            stack[sp - 1] = op.getAction().perform(Arrays.copyOfRange(stack, sp - 1, sp + arity - 1));
+                    }
                 }
-                Variable var = (Variable) item;
-                String value = variables.get(var.getId());
-                if (value == null)
-                    stack.push(Operand.NULL);
-                else if (var.getType() == ValuedItem.Type.STRING)
-                    stack.push(Operand.strItem(value));
-                else if (var.getType() == ValuedItem.Type.NUM)
-                    stack.push(Operand.numItem(new BigDecimal(value)));
-                else if (var.getType() == ValuedItem.Type.BOOL)
-                    stack.push(Operand.boolItem("1".equals(value) || "true".equalsIgnoreCase(value)));
-                else
-                    stack.push(Operand.NULL);
-            } else if (item instanceof Operand) {
-                stack.push(item);
-            } else if (item instanceof Operations) {
-                Operations op = (Operations) item;
-                int opNum = op.type.getOpNum();
-                Operand[] operands = new Operand[opNum];
-                for (int i = opNum - 1; i >= 0; i--)
-                    operands[i] = (Operand) stack.pop();
-//                System.out.println(op.action.getClass());
-//                for(Operand _op : operands)
-//                    System.out.println(">"+_op.getValue());
-                Operand res = op.action.perform(operands);
-                stack.push(res);
             }
-        }
 
-        // This should have been blocked by compilation, but just in case.
-        if (stack.size() != 1)
-            throw new IllegalArgumentException("Wrong number of operands");
+            // This should have been blocked by compilation, but just in case.
+            if (sp != base + 1)
+                throw new IllegalArgumentException("Wrong number of operands");
 
-        return ((Operand) stack.pop());
+            return stack[base];
+        } finally {
+            // don't keep the operands alive
+            Arrays.fill(stack, base, base + size, null);
+            operandStack.top = base;
+        }
     }
 
     public Operand evaluate(Map<String, String> variables) throws EvalException {
-        return evaluateToOperand(variables);
+        return evaluateToOperand(var -> var.resolve(variables));
+    }
+
+    public Operand evaluate(VariableSource source) throws EvalException {
+        return evaluateToOperand(var -> resolve(var, source));
+    }
+
+    static Operand resolve(Variable var, VariableSource source) throws EvalException {
+        switch (var.getType()) {
+            case NUM: {
+                BigDecimal value = source.getNumber(var.getId());
+                return value == null ? Operand.NULL : Operand.numItem(value);
+            }
+            case STRING: {
+                String value = source.getString(var.getId());
+                return value == null ? Operand.NULL : Operand.strItem(value);
+            }
+            case BOOL: {
+                Boolean value = source.getBoolean(var.getId());
+                return value == null ? Operand.NULL : Operand.boolItem(value);
+            }
+            default:
+                return Operand.NULL;
+        }
+    }
+
+    public Operand evaluate(PreparedBindings bindings) throws EvalException {
+        return evaluateToOperand(bindings);
+    }
+
+    public Operand evaluate(Bindings bindings) throws EvalException {
+        if (!bindings.isFor(variables))
+            throw new IllegalArgumentException("The bindings were created by another Evaluator");
+        return evaluateToOperand(bindings);
+    }
+
+    // Like evaluate(), but a failure on these values is returned instead of
+    // thrown, so that it's cheap also when many records are invalid
+    public EvalResult tryEvaluate(Map<String, String> variables) {
+        return evaluateToResult(var -> var.resolve(variables));
+    }
+
+    public EvalResult tryEvaluate(VariableSource source) {
+        return evaluateToResult(var -> resolve(var, source));
+    }
+
+    public EvalResult tryEvaluate(PreparedBindings bindings) {
+        return evaluateToResult(bindings);
+    }
+
+    public EvalResult tryEvaluate(Bindings bindings) {
+        if (!bindings.isFor(variables))
+            throw new IllegalArgumentException("The bindings were created by another Evaluator");
+        return evaluateToResult(bindings);
+    }
+
+    private EvalResult evaluateToResult(VariableResolver variables) {
+        try {
+            return EvalResult.of(evaluateToOperand(variables));
+        } catch (EvalException e) {
+            return EvalResult.failed(e);
+        }
+    }
+
+    // Adapters for streams. The predicate fails if the result is not a
+    // boolean; without a policy, failures are thrown as UncheckedEvalException.
+    public Predicate<Map<String, String>> asPredicate() {
+        return asPredicate(ErrorPolicy.FAIL, null);
+    }
+
+    // With COLLECT, the failures are given to errors, that must be thread safe
+    // if used in a parallel stream
+    public Predicate<Map<String, String>> asPredicate(ErrorPolicy policy, Consumer<? super EvaluationFailure> errors) {
+        if (policy == ErrorPolicy.COLLECT && errors == null)
+            throw new IllegalArgumentException("A consumer for the errors is needed to COLLECT them");
+        return record -> {
+            try {
+                Operand ret = evaluate(record);
+                if (ret.getType() != ValuedItem.Type.BOOL)
+                    throw new EvalException("The result is not a boolean");
+                return ret == Operand.TRUE;
+            } catch (EvalException e) {
+                if (policy == ErrorPolicy.FAIL)
+                    throw new UncheckedEvalException(e);
+                if (policy == ErrorPolicy.COLLECT)
+                    errors.accept(new EvaluationFailure(record, e));
+                return false;
+            }
+        };
+    }
+
+    public Function<Map<String, String>, Operand> asFunction() {
+        return record -> {
+            try {
+                return evaluate(record);
+            } catch (EvalException e) {
+                throw new UncheckedEvalException(e);
+            }
+        };
+    }
+
+    // A lazy stream of the records of the source for which the expression is
+    // true. It can be made parallel, if the source splits well.
+    public <M extends Map<String, String>> Stream<M> filter(Spliterator<M> source, ErrorPolicy policy,
+                                                           Consumer<? super EvaluationFailure> errors) {
+        return StreamSupport.stream(new StreamingFilter<>(source, asPredicate(policy, errors)), false);
+    }
+
+    public <M extends Map<String, String>> Stream<M> filter(Iterator<M> source, ErrorPolicy policy,
+                                                           Consumer<? super EvaluationFailure> errors) {
+        return filter(Spliterators.spliteratorUnknownSize(source, Spliterator.ORDERED), policy, errors);
+    }
+
+    // Evaluate the expression for each record in parallel, on the common pool
+    // or on the given one. The results are in the same order as the records;
+    // if an evaluation fails, the others are stopped and the first failure is
+    // thrown. The records must be random access lists for a good scaling.
+    public List<Operand> mapParallel(List<? extends Map<String, String>> records) throws EvalException {
+        return mapParallel(records, ForkJoinPool.commonPool());
+    }
+
+    public List<Operand> mapParallel(List<? extends Map<String, String>> records, ForkJoinPool pool)
+            throws EvalException {
+        return Arrays.asList(evaluateParallel(records, pool));
+    }
+
+    // Returns the records for which the expression is true, in their order
+    public <M extends Map<String, String>> List<M> filterParallel(List<M> records) throws EvalException {
+        return filterParallel(records, ForkJoinPool.commonPool());
+    }
+
+    public <M extends Map<String, String>> List<M> filterParallel(List<M> records, ForkJoinPool pool)
+            throws EvalException {
+        Operand[] results = evaluateParallel(records, pool);
+        List<M> ret = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].getType() != ValuedItem.Type.BOOL)
+                throw new EvalException("Record " + i + ": the result is not a boolean");
+            if (results[i] == Operand.TRUE)
+                ret.add(records.get(i));
+        }
+        return ret;
+    }
+
+    private Operand[] evaluateParallel(List<? extends Map<String, String>> records, ForkJoinPool pool)
+            throws EvalException {
+        Operand[] results = new Operand[records.size()];
+        AtomicReference<EvalException> failure = new AtomicReference<>();
+        pool.invoke(new ParallelEvaluation(this, records, results, failure, 0, results.length));
+        if (failure.get() != null)
+            throw failure.get();
+        return results;
+    }
+
+    // Evaluates the expression over the first rows of a set of columns, one for
+    // each slot (see variableSlots()), and writes the results into output.
+    // Numbers can be given as BigDecimal[], double[] or long[], strings as
+    // String[] and booleans as boolean[] or Boolean[]. Each operation is
+    // performed on all the rows before the next one; if it fails on a row, the
+    // whole batch fails, as it does for a NaN or an infinite double.
+    public void evaluateBatch(Object[] columns, int rows, Operand[] output) throws EvalException {
+        if (columns.length != variables.length)
+            throw new IllegalArgumentException("Expected " + variables.length + " columns, got " + columns.length);
+        if (output.length < rows)
+            throw new IllegalArgumentException("The output has less than " + rows + " rows");
+        Operand[][] operands = new Operand[columns.length][];
+        for (int i = 0; i < columns.length; i++)
+            operands[i] = Batch.column(variables[i], columns[i], rows);
+        Batch.run(items, maxDepth, localSlots, operands, rows, output);
+    }
+
+    // These return the result as a primitive, without creating operands in the
+    // DOUBLE and LONG modes. In other modes, or with a listener, the result is
+    // converted.
+    public double evaluateDouble(Bindings bindings) throws EvalException {
+        if (primitive != null && listener == null && !primitive.isBoolean() && bindings.isFor(variables))
+            return primitive.runDouble(bindings);
+        Operand ret = evaluate(bindings);
+        if (ret.getType() != ValuedItem.Type.NUM)
+            throw new EvalException("The result is not a number");
+        return ((BigDecimal) ret.getValue()).doubleValue();
+    }
+
+    public long evaluateLong(Bindings bindings) throws EvalException {
+        if (primitive != null && listener == null && primitive.getMode() == PrimitiveProgram.Mode.LONG && !primitive.isBoolean()
+                && bindings.isFor(variables))
+            return primitive.runLong(bindings);
+        Operand ret = evaluate(bindings);
+        if (ret.getType() != ValuedItem.Type.NUM)
+            throw new EvalException("The result is not a number");
+        try {
+            return ((BigDecimal) ret.getValue()).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new EvalException("The result is not a long integer");
+        }
+    }
+
+    public boolean evaluateBoolean(Bindings bindings) throws EvalException {
+        if (primitive != null && listener == null && primitive.isBoolean() && bindings.isFor(variables))
+            return primitive.runDouble(bindings) != 0;
+        Operand ret = evaluate(bindings);
+        if (ret.getType() != ValuedItem.Type.BOOL)
+            throw new EvalException("The result is not a boolean");
+        return ret == Operand.TRUE;
     }
 
     public String evaluateToString(Map<String, String> variables) throws EvalException {
@@ -391,7 +705,7 @@ public class Evaluator {
     }
 
     public Operand evaluate() throws EvalException {
-        return evaluateToOperand(null);
+        return evaluate((Map<String, String>) null);
     }
 
     public String evaluateToString() throws EvalException {
@@ -0,0 +1,174 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import java.text.ParseException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+// A thread-safe, bounded cache of compiled expressions. Concurrent requests for
+// an expression that is not cached compile it only once. When full, an entry
+// is evicted with the CLOCK algorithm (an approximation of LRU that doesn't
+// need to lock on hits).
+public class EvaluatorCache {
+    private static final class Entry {
+        private final String expression;
+        private final FutureTask<Evaluator> compilation;
+        private volatile boolean referenced;
+
+        private Entry(String expression, Evaluator.Option[] options) {
+            this.expression = expression;
+            this.compilation = new FutureTask<>(() -> Evaluator.compile(expression, options));
+        }
+    }
+
+    private final int maxSize;
+    private final Evaluator.Option[] options;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // the compiled entries, in the order they are visited by the clock hand
+    private final Queue<Entry> clock = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public EvaluatorCache(int maxSize, Evaluator.Option... options) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("The size of the cache must be positive");
+        this.maxSize = maxSize;
+        this.options = options.clone();
+    }
+
+    public Evaluator get(String expression) throws ParseException {
+        Entry entry = entries.get(expression);
+        if (entry == null) {
+            Entry created = new Entry(expression, options);
+            entry = entries.putIfAbsent(expression, created);
+            if (entry == null) {
+                misses.increment();
+                return compile(created);
+            }
+        }
+        hits.increment();
+        if (!entry.referenced)
+            entry.referenced = true;
+        return await(entry);
+    }
+
+    private Evaluator compile(Entry entry) throws ParseException {
+        entry.compilation.run();
+        Evaluator ret;
+        try {
+            ret = await(entry);
+        } catch (ParseException | RuntimeException | Error e) {
+            // failures are not cached
+            entries.remove(entry.expression, entry);
+            throw e;
+        }
+        clock.offer(entry);
+        if (entries.size() > maxSize)
+            evict();
+        return ret;
+    }
+
+    private static Evaluator await(Entry entry) throws ParseException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return entry.compilation.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof ParseException)
+                        throw (ParseException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    if (cause instanceof Error)
+                        throw (Error) cause;
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    // Entries that were used since the last time the hand passed get a second
+    // chance; the others are evicted.
+    private void evict() {
+        synchronized (clock) {
+            while (entries.size() > maxSize) {
+                Entry entry = clock.poll();
+                if (entry == null)
+                    return;
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    clock.offer(entry);
+                } else if (entries.remove(entry.expression, entry))
+                    evictions.increment();
+            }
+        }
+    }
+
+    public void invalidate(String expression) {
+        Entry entry = entries.remove(expression);
+        if (entry != null)
+            clock.remove(entry);
+    }
+
+    public void clear() {
+        synchronized (clock) {
+            entries.clear();
+            clock.clear();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
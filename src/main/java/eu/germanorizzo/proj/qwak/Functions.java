@@ -0,0 +1,54 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.Operations;
+import eu.germanorizzo.proj.qwak.internals.UserFunction;
+import eu.germanorizzo.proj.qwak.internals.ValuedItem;
+
+// Registers the user functions that the expressions can call, by name. They
+// must be registered before compiling the expressions that use them; the
+// expressions already compiled keep the function they were compiled with.
+public final class Functions {
+    private Functions() {
+    }
+
+    // A function with any types of arguments and result
+    public static void register(String name, int arity, boolean pure, Operations.Performable implementation) {
+        register(name, null, new ValuedItem.Type[arity], pure, 0, implementation);
+    }
+
+    // A pure function can be memoized with a memo size greater than 0: its
+    // results are kept, up to that many, for all the evaluations in all the
+    // threads
+    public static void register(String name, ValuedItem.Type returnType, ValuedItem.Type[] argTypes, boolean pure,
+                                int memoSize, Operations.Performable implementation) {
+        UserFunction.register(new UserFunction(name, returnType, argTypes, pure, memoSize, implementation));
+    }
+
+    public static void unregister(String name) {
+        UserFunction.unregister(name);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts of durations (or any non-negative value) with a bounded relative
+// error, as in HdrHistogram: each power of 2 is split in 8 buckets, so the
+// bucket of a value is at most 12.5% wider than the value. Recording is
+// lock-free and thread safe.
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final LongAdder[] buckets = new LongAdder[64 * SUB_BUCKETS];
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) Math.max(value, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // the highest value that goes into a bucket
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long low = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return low + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    public void record(long value) {
+        buckets[index(value)].increment();
+    }
+
+    public long count() {
+        long ret = 0;
+        for (LongAdder bucket : buckets)
+            ret += bucket.sum();
+        return ret;
+    }
+
+    // The value that the given percentage (0-100) of the recorded ones doesn't
+    // exceed, rounded up to the end of its bucket; 0 if nothing was recorded
+    public long percentile(double percent) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++)
+            total += counts[i] = buckets[i].sum();
+        long target = Math.max(1, (long) Math.ceil(total * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target)
+                return upperBound(i);
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets)
+            bucket.reset();
+    }
+}
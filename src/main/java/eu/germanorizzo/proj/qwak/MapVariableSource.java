@@ -0,0 +1,115 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.EvalException;
+import eu.germanorizzo.proj.qwak.internals.Operand;
+import eu.germanorizzo.proj.qwak.internals.ValuedItem;
+import eu.germanorizzo.proj.qwak.internals.Variable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+
+final class MapVariableSource implements VariableSource {
+    private final Map<String, ?> variables;
+
+    MapVariableSource(Map<String, ?> variables) {
+        this.variables = variables;
+    }
+
+    @Override
+    public BigDecimal getNumber(String name) throws EvalException {
+        return toNumber(name, variables.get(name));
+    }
+
+    @Override
+    public String getString(String name) {
+        return toString(variables.get(name));
+    }
+
+    @Override
+    public Boolean getBoolean(String name) throws EvalException {
+        return toBoolean(name, variables.get(name));
+    }
+
+    // NULL if the value is null
+    static Operand toOperand(Variable variable, Object value) throws EvalException {
+        if (value == null)
+            return Operand.NULL;
+        switch (variable.getType()) {
+            case NUM:
+                return Operand.numItem(toNumber(variable.getId(), value));
+            case STRING:
+                return Operand.strItem(toString(value));
+            case BOOL:
+                return Operand.boolItem(toBoolean(variable.getId(), value));
+            default:
+                return Operand.NULL;
+        }
+    }
+
+    // Strings that are not numbers fail as in Variable.decode(), as do NaN,
+    // the infinities and the Numbers of other classes
+    static BigDecimal toNumber(String name, Object value) throws EvalException {
+        if (value == null)
+            return null;
+        BigDecimal ret = value instanceof String ? Operand.parseNum((String) value) : decimal(value);
+        if (ret == null)
+            throw new EvalException(EvalException.Code.CONVERSION, "Variable %" + name + " is not a number");
+        return ret;
+    }
+
+    // null if it's not a finite number of a known class
+    private static BigDecimal decimal(Object value) {
+        if (value instanceof BigDecimal)
+            return (BigDecimal) value;
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+            return BigDecimal.valueOf(((Number) value).longValue());
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            return Double.isNaN(d) || Double.isInfinite(d) ? null : BigDecimal.valueOf(d);
+        }
+        if (value instanceof BigInteger)
+            return new BigDecimal((BigInteger) value);
+        return null;
+    }
+
+    static String toString(Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    // numbers are true if not zero, as "1" is
+    static Boolean toBoolean(String name, Object value) throws EvalException {
+        if (value == null || value instanceof Boolean)
+            return (Boolean) value;
+        if (value instanceof String)
+            return "1".equals(value) || "true".equalsIgnoreCase((String) value);
+        BigDecimal number = decimal(value);
+        if (number == null)
+            throw new EvalException(EvalException.Code.CONVERSION, "Variable ?" + name + " is not a boolean");
+        return number.signum() != 0;
+    }
+}
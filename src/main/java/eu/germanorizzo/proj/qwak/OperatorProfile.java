@@ -0,0 +1,121 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Invocations and time spent by operator, for the evaluators compiled with
+// Option.PROFILE: each one has its own profile, and they all add to the
+// global one. Built-in operations are named as the Operations constants,
+// user functions by their names; VARIABLES is the decoding of the values.
+// The time includes the overhead of measuring it, so it's useful to compare
+// the operators rather than as an absolute figure.
+public final class OperatorProfile {
+    public static final String VARIABLES = "variables";
+
+    private static final OperatorProfile GLOBAL = new OperatorProfile();
+
+    private final Map<String, OperationCounter> counters = new ConcurrentHashMap<>();
+    private final OperationCounter variables = counter(VARIABLES);
+
+    OperatorProfile() {
+    }
+
+    public static OperatorProfile global() {
+        return GLOBAL;
+    }
+
+    public static final class Counts {
+        private final long invocations;
+        private final long nanos;
+
+        private Counts(long invocations, long nanos) {
+            this.invocations = invocations;
+            this.nanos = nanos;
+        }
+
+        public long getInvocations() {
+            return invocations;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    // By name, the ones invoked at least once
+    public Map<String, Counts> snapshot() {
+        Map<String, Counts> ret = new TreeMap<>();
+        counters.forEach((name, counter) -> {
+            long invocations = counter.getInvocations();
+            if (invocations > 0)
+                ret.put(name, new Counts(invocations, counter.getNanos()));
+        });
+        return Collections.unmodifiableMap(ret);
+    }
+
+    public void reset() {
+        for (OperationCounter counter : counters.values())
+            counter.reset();
+    }
+
+    private OperationCounter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new OperationCounter());
+    }
+
+    // A copy of the program whose operators record into this profile and the
+    // global one
+    Item[] instrument(Item[] items) {
+        Item[] ret = items.clone();
+        for (int i = 0; i < ret.length; i++)
+            if (ret[i] instanceof Operator) {
+                Operator op = (Operator) ret[i];
+                Operations operation = Operations.of(op);
+                String name = operation != null ? operation.name() : op.getName();
+                ret[i] = new ProfiledOperator(op, counter(name), GLOBAL.counter(name));
+            }
+        return ret;
+    }
+
+    // Records the time spent resolving the variables
+    VariableResolver instrument(VariableResolver variables) {
+        OperationCounter local = this.variables, global = GLOBAL.variables;
+        return var -> {
+            long start = System.nanoTime();
+            try {
+                return variables.resolve(var);
+            } finally {
+                long nanos = System.nanoTime() - start;
+                local.record(nanos);
+                global.record(nanos);
+            }
+        };
+    }
+}
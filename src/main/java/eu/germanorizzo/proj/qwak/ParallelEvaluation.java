@@ -0,0 +1,87 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.EvalException;
+import eu.germanorizzo.proj.qwak.internals.Operand;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Evaluates an expression over a range of records, splitting it in halves
+// while the pool has idle workers and the range is big enough. Results are
+// written by index, so they keep the order of the records. The first failure
+// stops the other tasks and is kept to be rethrown by the caller.
+final class ParallelEvaluation extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    // below this many records, splitting costs more than it gives
+    private static final int MIN_CHUNK = 256;
+
+    private final Evaluator evaluator;
+    private final List<? extends Map<String, String>> records;
+    private final Operand[] results;
+    private final AtomicReference<EvalException> failure;
+    private final int from, to;
+
+    ParallelEvaluation(Evaluator evaluator, List<? extends Map<String, String>> records, Operand[] results,
+                       AtomicReference<EvalException> failure, int from, int to) {
+        this.evaluator = evaluator;
+        this.records = records;
+        this.results = results;
+        this.failure = failure;
+        this.from = from;
+        this.to = to;
+    }
+
+    // the tasks forked by the same parent, to be joined
+    private ParallelEvaluation next;
+
+    @Override
+    protected void compute() {
+        int lo = from, hi = to;
+        // forks the right halves while there's not enough queued work to keep
+        // the other workers busy, and evaluates the remaining left part
+        ParallelEvaluation forked = null;
+        while (hi - lo > MIN_CHUNK && getSurplusQueuedTaskCount() <= 2) {
+            int mid = (lo + hi) >>> 1;
+            ParallelEvaluation right = new ParallelEvaluation(evaluator, records, results, failure, mid, hi);
+            right.next = forked;
+            forked = right;
+            right.fork();
+            hi = mid;
+        }
+        for (int i = lo; i < hi && failure.get() == null; i++)
+            try {
+                results[i] = evaluator.evaluate(records.get(i));
+            } catch (EvalException e) {
+                failure.compareAndSet(null, new EvalException(e.getCode(), "Record " + i + ": " + e.getMessage()));
+            }
+        for (; forked != null; forked = forked.next)
+            forked.join();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.EvalException;
+import eu.germanorizzo.proj.qwak.internals.Operand;
+import eu.germanorizzo.proj.qwak.internals.ValuedItem;
+import eu.germanorizzo.proj.qwak.internals.Variable;
+import eu.germanorizzo.proj.qwak.internals.VariableResolver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The values of the variables of an event, for all the expressions evaluated
+// on it. Each value is converted (as in VariableSource.of()) to the type of a
+// reference the first time it's needed, and kept for the other references
+// and expressions. Thread safe; the map must not change while in use.
+public final class PreparedBindings implements VariableResolver {
+    private final Map<String, ?> variables;
+    // by name, the converted values by type ordinal
+    private final Map<String, Operand[]> decoded = new ConcurrentHashMap<>();
+
+    private PreparedBindings(Map<String, ?> variables) {
+        this.variables = variables;
+    }
+
+    public static PreparedBindings of(Map<String, ?> variables) {
+        return new PreparedBindings(variables);
+    }
+
+    @Override
+    public Operand resolve(Variable variable) throws EvalException {
+        String name = variable.getId();
+        Operand[] byType = decoded.get(name);
+        if (byType == null) {
+            byType = new Operand[ValuedItem.Type.values().length];
+            Operand[] other = decoded.putIfAbsent(name, byType);
+            if (other != null)
+                byType = other;
+        }
+        // operands are immutable, a race only converts the value twice
+        int type = variable.getType().ordinal();
+        Operand ret = byType[type];
+        if (ret == null) {
+            ret = MapVariableSource.toOperand(variable, variables.get(name));
+            byType[type] = ret;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.*;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.util.*;
+
+// Matches many boolean expressions against the same variables, evaluating only
+// the ones that can be true. Every expression is indexed by one of its top
+// level AND-ed comparisons between a variable and a literal: equalities in a
+// hash map from the literal, numeric comparisons in a sorted map of bounds.
+// The variables of an event then select the candidates, and the expressions
+// with no such comparison are always candidates. Thread safe.
+public final class RuleIndex {
+    private final Evaluator[] rules;
+    private final Map<String, Variable> variables = new HashMap<>();
+    // by variable (with its prefix), then by literal
+    private final Map<String, Map<Object, List<Integer>>> equalities = new HashMap<>();
+    // "variable > literal" (or >=) can be true when literal <= value, and
+    // "variable < literal" (or <=) when literal >= value. The bounds are
+    // inclusive anyway, the expressions decide.
+    private final Map<String, TreeMap<BigDecimal, List<Integer>>> lowerBounds = new HashMap<>();
+    private final Map<String, TreeMap<BigDecimal, List<Integer>>> upperBounds = new HashMap<>();
+    private final List<Integer> unindexed = new ArrayList<>();
+
+    private RuleIndex(Evaluator[] rules) {
+        this.rules = rules;
+    }
+
+    public static RuleIndex compile(String... expressions) throws ParseException {
+        return compile(Arrays.asList(expressions));
+    }
+
+    public static RuleIndex compile(List<String> expressions) throws ParseException {
+        RuleIndex ret = new RuleIndex(new Evaluator[expressions.size()]);
+        for (int i = 0; i < ret.rules.length; i++) {
+            try {
+                ret.rules[i] = Evaluator.compile(expressions.get(i));
+            } catch (ParseException e) {
+                throw new ParseException("Expression " + i + ": " + e.getMessage(), e.getErrorOffset());
+            }
+            ret.index(i);
+        }
+        return ret;
+    }
+
+    public int size() {
+        return rules.length;
+    }
+
+    // The number of expressions that are evaluated for every event
+    public int unindexedCount() {
+        return unindexed.size();
+    }
+
+    private void index(int rule) {
+        List<Item> rpn = new ArrayList<>();
+        for (Item item : rules[rule].items())
+            if (!(item instanceof Jump || item instanceof Store))
+                rpn.add(item);
+
+        // the start of the subtree ending at each position
+        int[] starts = new int[rpn.size()];
+        Stack<Integer> stack = new Stack<>();
+        for (int i = 0; i < rpn.size(); i++) {
+            int start = i;
+            if (rpn.get(i) instanceof Operator)
+                for (int j = 0; j < ((Operator) rpn.get(i)).getArity(); j++)
+                    start = stack.pop();
+            starts[i] = start;
+            stack.push(start);
+        }
+
+        // the conjuncts, as the positions where they end
+        List<Integer> conjuncts = new ArrayList<>();
+        Stack<Integer> toVisit = new Stack<>();
+        toVisit.push(rpn.size() - 1);
+        while (!toVisit.isEmpty()) {
+            int end = toVisit.pop();
+            if (rpn.get(end) == Operations.AND) {
+                toVisit.push(end - 1);
+                toVisit.push(starts[end - 1] - 1);
+            } else
+                conjuncts.add(end);
+        }
+
+        // equalities are preferred, as they're more selective
+        int range = -1;
+        for (int end : conjuncts) {
+            if (end - starts[end] != 2)
+                continue;
+            Operations op = Operations.of(rpn.get(end));
+            if (op == Operations.EQUAL && indexEquality(rule, rpn.get(end - 2), rpn.get(end - 1)))
+                return;
+            if (range < 0 && (op == Operations.GREATER || op == Operations.GREATER_EQ || op == Operations.LESSER
+                    || op == Operations.LESSER_EQ))
+                range = end;
+        }
+        if (range >= 0 && indexRange(rule, rpn.get(range - 2), rpn.get(range - 1), Operations.of(rpn.get(range))))
+            return;
+        unindexed.add(rule);
+    }
+
+    private boolean indexEquality(int rule, Item first, Item second) {
+        if (first instanceof Operand) {
+            Item swap = first;
+            first = second;
+            second = swap;
+        }
+        if (!(first instanceof Variable) || !(second instanceof Operand)
+                || ((Operand) second).getType() == ValuedItem.Type.NULL)
+            return false;
+        Variable var = (Variable) first;
+        String key = var.getPrefix() + var.getId();
+        variables.putIfAbsent(key, var);
+        equalities.computeIfAbsent(key, k -> new HashMap<>())
+                .computeIfAbsent(((Operand) second).getValue(), k -> new ArrayList<>()).add(rule);
+        return true;
+    }
+
+    private boolean indexRange(int rule, Item first, Item second, Operations op) {
+        boolean lower = op == Operations.GREATER || op == Operations.GREATER_EQ;
+        if (first instanceof Operand) {
+            Item swap = first;
+            first = second;
+            second = swap;
+            lower = !lower;
+        }
+        if (!(first instanceof Variable) || ((Variable) first).getType() != ValuedItem.Type.NUM
+                || !(second instanceof Operand) || ((Operand) second).getType() != ValuedItem.Type.NUM)
+            return false;
+        Variable var = (Variable) first;
+        String key = var.getPrefix() + var.getId();
+        variables.putIfAbsent(key, var);
+        (lower ? lowerBounds : upperBounds).computeIfAbsent(key, k -> new TreeMap<>())
+                .computeIfAbsent((BigDecimal) ((Operand) second).getValue(), k -> new ArrayList<>()).add(rule);
+        return true;
+    }
+
+    // The indexes of the expressions that are true for these variables, in
+    // ascending order. Expressions that fail don't match.
+    public int[] match(Map<String, String> variables) {
+        // every variable is converted once for all the candidates
+        return match(PreparedBindings.of(variables));
+    }
+
+    public int[] match(PreparedBindings variables) {
+        List<Integer> candidates = new ArrayList<>(unindexed);
+        for (Map.Entry<String, Variable> entry : this.variables.entrySet()) {
+            Operand value;
+            try {
+                value = variables.resolve(entry.getValue());
+            } catch (EvalException e) {
+                // the expressions indexed on it would fail
+                continue;
+            }
+            if (value.getType() == ValuedItem.Type.NULL)
+                continue;
+            Map<Object, List<Integer>> equal = equalities.get(entry.getKey());
+            if (equal != null && equal.containsKey(value.getValue()))
+                candidates.addAll(equal.get(value.getValue()));
+            if (value.getType() != ValuedItem.Type.NUM)
+                continue;
+            BigDecimal num = (BigDecimal) value.getValue();
+            TreeMap<BigDecimal, List<Integer>> lower = lowerBounds.get(entry.getKey());
+            if (lower != null)
+                for (List<Integer> rules : lower.headMap(num, true).values())
+                    candidates.addAll(rules);
+            TreeMap<BigDecimal, List<Integer>> upper = upperBounds.get(entry.getKey());
+            if (upper != null)
+                for (List<Integer> rules : upper.tailMap(num, true).values())
+                    candidates.addAll(rules);
+        }
+
+        // every expression is indexed once, so there are no duplicates
+        int[] ret = new int[candidates.size()];
+        int matches = 0;
+        for (int rule : candidates)
+            try {
+                if (rules[rule].evaluate(variables) == Operand.TRUE)
+                    ret[matches++] = rule;
+            } catch (EvalException e) {
+            }
+        ret = Arrays.copyOf(ret, matches);
+        Arrays.sort(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.*;
+
+import java.text.ParseException;
+import java.util.*;
+
+// Many expressions compiled together, to be evaluated on the same variables.
+// All their subtrees are merged in a single DAG, so that every distinct
+// subexpression (and every variable) is computed once per evaluation,
+// whatever the number of expressions that contain it. Nodes are computed
+// only when needed, so AND and OR are still short-circuited. Thread safe.
+public final class RuleSet {
+    // The nodes, children before their parents
+    private final Item[] nodes;
+    private final int[][] children;
+    // the root node of each expression
+    private final int[] roots;
+
+    private RuleSet(Item[] nodes, int[][] children, int[] roots) {
+        this.nodes = nodes;
+        this.children = children;
+        this.roots = roots;
+    }
+
+    public static RuleSet compile(String... expressions) throws ParseException {
+        return compile(Arrays.asList(expressions));
+    }
+
+    public static RuleSet compile(List<String> expressions) throws ParseException {
+        List<Item> nodes = new ArrayList<>();
+        List<int[]> children = new ArrayList<>();
+        Map<String, Integer> byKey = new HashMap<>();
+        int[] roots = new int[expressions.size()];
+        for (int i = 0; i < roots.length; i++) {
+            Evaluator evaluator;
+            try {
+                evaluator = Evaluator.compile(expressions.get(i));
+            } catch (ParseException e) {
+                throw new ParseException("Expression " + i + ": " + e.getMessage(), e.getErrorOffset());
+            }
+
+            Stack<Integer> stack = new Stack<>();
+            // the nodes of the common subexpressions, by local slot
+            Map<Integer, Integer> stored = new HashMap<>();
+            for (Item item : evaluator.items()) {
+                if (item instanceof Jump)
+                    continue;
+                if (item instanceof Store) {
+                    stored.put(((Store) item).getSlot(), stack.peek());
+                    continue;
+                }
+                if (item instanceof Load) {
+                    stack.push(stored.get(((Load) item).getSlot()));
+                    continue;
+                }
+                String key;
+                int[] args = new int[0];
+                if (item instanceof Operand) {
+                    Operand operand = (Operand) item;
+                    key = "c" + operand.getType() + ":" + operand.getValue();
+                } else if (item instanceof Variable) {
+                    Variable var = (Variable) item;
+                    key = "v" + var.getPrefix() + var.getId();
+                } else {
+                    Operator op = (Operator) item;
+                    args = new int[op.getArity()];
+                    for (int j = args.length - 1; j >= 0; j--)
+                        args[j] = stack.pop();
+                    key = op.getName() + Arrays.toString(args);
+                    // impure functions are called every time they appear
+                    if (!op.isPure())
+                        key += "#" + nodes.size();
+                }
+                Integer node = byKey.get(key);
+                if (node == null) {
+                    node = nodes.size();
+                    byKey.put(key, node);
+                    nodes.add(item);
+                    children.add(args);
+                }
+                stack.push(node);
+            }
+            roots[i] = stack.pop();
+        }
+        return new RuleSet(nodes.toArray(new Item[0]), children.toArray(new int[0][]), roots);
+    }
+
+    public int size() {
+        return roots.length;
+    }
+
+    // The number of distinct subexpressions
+    public int nodeCount() {
+        return nodes.length;
+    }
+
+    public Results evaluate(Map<String, String> variables) {
+        return evaluate(var -> var.resolve(variables));
+    }
+
+    public Results evaluate(VariableSource source) {
+        return evaluate(var -> Evaluator.resolve(var, source));
+    }
+
+    public Results evaluate(PreparedBindings bindings) {
+        return evaluate((VariableResolver) bindings);
+    }
+
+    // The results of the expressions, by index. If an expression fails, its
+    // exception is thrown by get().
+    public static final class Results {
+        private final Operand[] values;
+        private final EvalException[] errors;
+
+        private Results(Operand[] values, EvalException[] errors) {
+            this.values = values;
+            this.errors = errors;
+        }
+
+        public int size() {
+            return values.length;
+        }
+
+        public Operand get(int index) throws EvalException {
+            if (errors[index] != null)
+                throw errors[index];
+            return values[index];
+        }
+
+        // True if the expression didn't fail and its result is true
+        public boolean matches(int index) {
+            return values[index] == Operand.TRUE;
+        }
+    }
+
+    private Results evaluate(VariableResolver variables) {
+        Operand[] values = new Operand[nodes.length];
+        EvalException[] errors = new EvalException[nodes.length];
+        int[] stack = new int[16];
+        for (int root : roots) {
+            // computes the root, after the children it needs
+            int sp = 0;
+            stack[sp++] = root;
+            while (sp > 0) {
+                int node = stack[sp - 1];
+                if (values[node] != null || errors[node] != null) {
+                    sp--;
+                    continue;
+                }
+                int pending = pendingChild(node, values, errors);
+                if (pending >= 0) {
+                    if (sp == stack.length)
+                        stack = Arrays.copyOf(stack, sp * 2);
+                    stack[sp++] = pending;
+                    continue;
+                }
+                sp--;
+                try {
+                    values[node] = compute(node, values, errors, variables);
+                } catch (EvalException e) {
+                    errors[node] = e;
+                }
+            }
+        }
+
+        Operand[] results = new Operand[roots.length];
+        EvalException[] resultErrors = new EvalException[roots.length];
+        for (int i = 0; i < roots.length; i++) {
+            results[i] = values[roots[i]];
+            resultErrors[i] = errors[roots[i]];
+        }
+        return new Results(results, resultErrors);
+    }
+
+    private static boolean isDone(int node, Operand[] values, EvalException[] errors) {
+        return values[node] != null || errors[node] != null;
+    }
+
+    // The first child that must be computed before the node, -1 if none. The
+    // right operand of AND and OR is not needed if the left one decides.
+    private int pendingChild(int node, Operand[] values, EvalException[] errors) {
+        int[] args = children[node];
+        if (nodes[node] == Operations.AND || nodes[node] == Operations.OR) {
+            if (!isDone(args[0], values, errors))
+                return args[0];
+            if (errors[args[0]] != null || isDecided(node, values[args[0]]))
+                return -1;
+            return isDone(args[1], values, errors) ? -1 : args[1];
+        }
+        for (int arg : args)
+            if (!isDone(arg, values, errors))
+                return arg;
+        return -1;
+    }
+
+    // As the jumps of Evaluator: false for AND and true for OR are the result
+    private boolean isDecided(int node, Operand left) {
+        return left == (nodes[node] == Operations.AND ? Operand.FALSE : Operand.TRUE);
+    }
+
+    private Operand compute(int node, Operand[] values, EvalException[] errors, VariableResolver variables)
+            throws EvalException {
+        Item item = nodes[node];
+        if (item instanceof Operand)
+            return (Operand) item;
+        if (item instanceof Variable)
+            return variables.resolve((Variable) item);
+
+        int[] args = children[node];
+        Operator op = (Operator) item;
+        if ((op == Operations.AND || op == Operations.OR) && isDecided(node, values[args[0]]))
+            return values[args[0]];
+        for (int arg : args)
+            if (errors[arg] != null)
+                throw errors[arg];
+        switch (args.length) {
+            case 1:
+                return op.getAction().perform(values[args[0]]);
+            case 2:
+                return op.getAction().perform(values[args[0]], values[args[1]]);
+            case 3:
+                return op.getAction().perform(values[args[0]], values[args[1]], values[args[2]]);
+            default:
+                Operand[] operands = new Operand[args.length];
+                for (int i = 0; i < args.length; i++)
+                    operands[i] = values[args[i]];
+                return op.getAction().perform(operands);
+        }
+    }
+}
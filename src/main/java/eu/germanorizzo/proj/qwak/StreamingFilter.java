@@ -0,0 +1,130 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Lazily filters the records of a source. They are pulled in batches of a
+// bounded size, so memory is constant whatever the size of the source, and
+// tested one by one: if the predicate fails on a record, the matching ones
+// before it are returned first, then the failure is thrown, and the records
+// after it are still tested if the caller goes on. It splits as the source
+// does, for parallel streams.
+final class StreamingFilter<M extends Map<String, String>> implements Spliterator<M> {
+    private static final int BATCH_SIZE = 1024;
+
+    private final Spliterator<M> source;
+    private final Predicate<? super M> predicate;
+    // the records pulled, and the matching ones among those tested
+    private final List<M> batch = new ArrayList<>();
+    private final List<M> matched = new ArrayList<>();
+    private int tested, next;
+    // thrown when the records that matched before it are returned
+    private RuntimeException failure;
+
+    StreamingFilter(Spliterator<M> source, Predicate<? super M> predicate) {
+        this.source = source;
+        this.predicate = predicate;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super M> action) {
+        while (next == matched.size()) {
+            if (failure != null) {
+                RuntimeException e = failure;
+                failure = null;
+                throw e;
+            }
+            matched.clear();
+            next = 0;
+            if (tested == batch.size()) {
+                batch.clear();
+                tested = 0;
+                int pulled = 0;
+                while (pulled < BATCH_SIZE && source.tryAdvance(batch::add))
+                    pulled++;
+                if (pulled == 0)
+                    return false;
+            }
+            while (tested < batch.size()) {
+                M record = batch.get(tested++);
+                try {
+                    if (predicate.test(record))
+                        matched.add(record);
+                } catch (RuntimeException e) {
+                    failure = e;
+                    break;
+                }
+            }
+        }
+        action.accept(matched.get(next++));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super M> action) {
+        while (next < matched.size())
+            action.accept(matched.get(next++));
+        if (failure != null) {
+            RuntimeException e = failure;
+            failure = null;
+            throw e;
+        }
+        while (tested < batch.size()) {
+            M record = batch.get(tested++);
+            if (predicate.test(record))
+                action.accept(record);
+        }
+        source.forEachRemaining(record -> {
+            if (predicate.test(record))
+                action.accept(record);
+        });
+    }
+
+    @Override
+    public Spliterator<M> trySplit() {
+        // the split would be a prefix, but the buffered records come before it
+        if (next < matched.size() || tested < batch.size() || failure != null)
+            return null;
+        Spliterator<M> split = source.trySplit();
+        return split == null ? null : new StreamingFilter<>(split, predicate);
+    }
+
+    @Override
+    public long estimateSize() {
+        long ret = source.estimateSize();
+        return ret == Long.MAX_VALUE ? ret : ret + batch.size() - tested + matched.size() - next;
+    }
+
+    @Override
+    public int characteristics() {
+        return source.characteristics() & (ORDERED | DISTINCT | NONNULL | IMMUTABLE | CONCURRENT);
+    }
+}
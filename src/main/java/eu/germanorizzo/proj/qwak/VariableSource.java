@@ -0,0 +1,48 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak;
+
+import eu.germanorizzo.proj.qwak.internals.EvalException;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+// Typed values for the variables: each getter is called for the references
+// with the corresponding prefix ('%' for getNumber, '$' for getString, '?'
+// for getBoolean), and returns null if the variable is not set. A value that
+// can't be converted to the type of the getter fails the evaluation.
+public interface VariableSource {
+    BigDecimal getNumber(String name) throws EvalException;
+
+    String getString(String name);
+
+    Boolean getBoolean(String name) throws EvalException;
+
+    // Values can be Numbers, Booleans or Strings; the latter are converted
+    // as they would be in a Map<String, String>.
+    static VariableSource of(Map<String, ?> variables) {
+        return new MapVariableSource(variables);
+    }
+}
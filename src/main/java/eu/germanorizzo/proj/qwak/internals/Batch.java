@@ -0,0 +1,205 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+// Evaluation of a program over many rows, one instruction at a time: every
+// stack position is a column, and each operation runs in a loop over all the
+// rows. A jump excludes the rows where it's taken until its target, keeping
+// their top of the stack as the result of the skipped subtree.
+public final class Batch {
+    private Batch() {
+    }
+
+    // Converts the values of a variable to operands. Numbers can be given as
+    // BigDecimal[], double[] or long[], strings as String[] and booleans as
+    // boolean[] or Boolean[]; nulls are NULL. NaN and the infinities fail
+    // the batch, as an operation failing on their row would.
+    public static Operand[] column(Variable var, Object values, int rows) throws EvalException {
+        if (values == null)
+            throw new IllegalArgumentException("Missing column for " + var.getPrefix() + var.getId());
+        Operand[] ret = new Operand[rows];
+        switch (var.getType()) {
+            case NUM:
+                if (values instanceof BigDecimal[]) {
+                    BigDecimal[] nums = check(var, (BigDecimal[]) values, rows);
+                    for (int i = 0; i < rows; i++)
+                        ret[i] = nums[i] == null ? Operand.NULL : Operand.numItem(nums[i]);
+                    return ret;
+                }
+                if (values instanceof double[] && ((double[]) values).length >= rows) {
+                    for (int i = 0; i < rows; i++) {
+                        double value = ((double[]) values)[i];
+                        if (Double.isNaN(value) || Double.isInfinite(value))
+                            throw new EvalException(EvalException.Code.CONVERSION,
+                                    "Row " + i + ": Variable %" + var.getId() + " is not a number");
+                        ret[i] = Operand.numItem(BigDecimal.valueOf(value));
+                    }
+                    return ret;
+                }
+                if (values instanceof long[] && ((long[]) values).length >= rows) {
+                    for (int i = 0; i < rows; i++)
+                        ret[i] = Operand.numItem(((long[]) values)[i]);
+                    return ret;
+                }
+                break;
+            case STRING:
+                if (values instanceof String[]) {
+                    String[] strs = check(var, (String[]) values, rows);
+                    for (int i = 0; i < rows; i++)
+                        ret[i] = strs[i] == null ? Operand.NULL : Operand.strItem(strs[i]);
+                    return ret;
+                }
+                break;
+            case BOOL:
+                if (values instanceof Boolean[]) {
+                    Boolean[] bools = check(var, (Boolean[]) values, rows);
+                    for (int i = 0; i < rows; i++)
+                        ret[i] = bools[i] == null ? Operand.NULL : Operand.boolItem(bools[i]);
+                    return ret;
+                }
+                if (values instanceof boolean[] && ((boolean[]) values).length >= rows) {
+                    for (int i = 0; i < rows; i++)
+                        ret[i] = Operand.boolItem(((boolean[]) values)[i]);
+                    return ret;
+                }
+                break;
+        }
+        throw new IllegalArgumentException("Invalid column for " + var.getPrefix() + var.getId() + ": "
+                + values.getClass().getSimpleName() + ", at least " + rows + " values of its type are needed");
+    }
+
+    private static <T> T[] check(Variable var, T[] values, int rows) {
+        if (values.length < rows)
+            throw new IllegalArgumentException("Invalid column for " + var.getPrefix() + var.getId() + ": "
+                    + values.length + " values, at least " + rows + " are needed");
+        return values;
+    }
+
+    // The columns are by slot
+    public static void run(Item[] items, int maxDepth, int localSlots, Operand[][] columns, int rows,
+                           Operand[] output) throws EvalException {
+        Operand[][] stack = new Operand[maxDepth][];
+        for (int i = 0; i < maxDepth; i++)
+            stack[i] = new Operand[rows];
+        Operand[][] locals = new Operand[localSlots][];
+        for (int i = 0; i < localSlots; i++)
+            locals[i] = new Operand[rows];
+        // the rows excluded by a jump are marked with its target
+        int[] skippedUntil = new int[rows];
+        Arrays.fill(skippedUntil, -1);
+        int skipped = 0;
+        int sp = 0;
+        for (int pc = 0; pc < items.length; pc++) {
+            if (skipped > 0)
+                for (int row = 0; row < rows; row++)
+                    if (skippedUntil[row] == pc) {
+                        skippedUntil[row] = -1;
+                        skipped--;
+                    }
+
+            Item item = items[pc];
+            if (item instanceof Jump) {
+                Jump jump = (Jump) item;
+                Operand[] top = stack[sp - 1];
+                for (int row = 0; row < rows; row++)
+                    if (skippedUntil[row] < 0 && jump.isTaken(top[row])) {
+                        skippedUntil[row] = jump.getTarget();
+                        skipped++;
+                    }
+            } else if (item instanceof Variable) {
+                Operand[] values = columns[((Variable) item).getSlot()];
+                Operand[] dest = stack[sp++];
+                for (int row = 0; row < rows; row++)
+                    if (skippedUntil[row] < 0)
+                        dest[row] = values[row];
+            } else if (item instanceof Store) {
+                Operand[] top = stack[sp - 1], dest = locals[((Store) item).getSlot()];
+                for (int row = 0; row < rows; row++)
+                    if (skippedUntil[row] < 0)
+                        dest[row] = top[row];
+            } else if (item instanceof Load) {
+                Operand[] values = locals[((Load) item).getSlot()];
+                Operand[] dest = stack[sp++];
+                for (int row = 0; row < rows; row++)
+                    if (skippedUntil[row] < 0)
+                        dest[row] = values[row];
+            } else if (item instanceof Operand) {
+                Operand[] dest = stack[sp++];
+                for (int row = 0; row < rows; row++)
+                    if (skippedUntil[row] < 0)
+                        dest[row] = (Operand) item;
+            } else {
+                Operator op = (Operator) item;
+                Operations.Performable action = op.getAction();
+                int row = 0;
+                try {
+                    switch (op.getArity()) {
+                        case 1: {
+                            Operand[] o1 = stack[sp - 1];
+                            for (; row < rows; row++)
+                                if (skippedUntil[row] < 0)
+                                    o1[row] = action.perform(o1[row]);
+                            break;
+                        }
+                        case 2: {
+                            sp--;
+                            Operand[] o1 = stack[sp - 1], o2 = stack[sp];
+                            for (; row < rows; row++)
+                                if (skippedUntil[row] < 0)
+                                    o1[row] = action.perform(o1[row], o2[row]);
+                            break;
+                        }
+                        case 3: {
+                            sp -= 2;
+                            Operand[] o1 = stack[sp - 1], o2 = stack[sp], o3 = stack[sp + 1];
+                            for (; row < rows; row++)
+                                if (skippedUntil[row] < 0)
+                                    o1[row] = action.perform(o1[row], o2[row], o3[row]);
+                            break;
+                        }
+                        default: {
+                            int arity = op.getArity();
+                            sp -= arity - 1;
+                            for (; row < rows; row++)
+                                if (skippedUntil[row] < 0) {
+                                    Operand[] operands = new Operand[arity];
+                                    for (int i = 0; i < arity; i++)
+                                        operands[i] = stack[sp - 1 + i][row];
+                                    stack[sp - 1][row] = action.perform(operands);
+                                }
+                        }
+                    }
+                } catch (EvalException e) {
+                    throw new EvalException(e.getCode(), "Row " + row + ": " + e.getMessage());
+                }
+            }
+        }
+
+        System.arraycopy(stack[0], 0, output, 0, rows);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+import java.util.*;
+
+// Compile-time elimination of common subexpressions: when a subtree with at
+// least one operation appears more than once, its first occurrence is
+// followed by a Store and the others are replaced by a Load. This is done
+// only if the first occurrence is surely computed when the other one is,
+// that is if it's not in the right operand of an AND or OR that doesn't also
+// contain the other one. All the operations are pure, so the result is the
+// same.
+public final class CommonSubexpressions {
+    private CommonSubexpressions() {
+    }
+
+    // Works on a program without jumps, that are added later. The offsets of
+    // the items in the expression are updated as the program.
+    public static List<Item> eliminate(List<Item> rpn, List<Integer> offsets) {
+        int size = rpn.size();
+        int[] starts = new int[size];
+        // a structural id for every subtree: equal subtrees have the same one
+        int[] ids = new int[size];
+        Map<String, Integer> byKey = new HashMap<>();
+        // the innermost right operand of AND/OR that contains each subtree, as
+        // the position where that operand ends (-1 if none)
+        int[] regions = new int[size];
+        // for each right operand, the one that contains it (-1 if none)
+        Map<Integer, Integer> parentRegions = new HashMap<>();
+        // the right operands, by the position where they start
+        Map<Integer, List<Integer>> regionsByStart = new HashMap<>();
+
+        Stack<Integer> stack = new Stack<>();
+        for (int i = 0; i < size; i++) {
+            Item item = rpn.get(i);
+            String key;
+            int start = i;
+            if (item instanceof Operator) {
+                Operator op = (Operator) item;
+                int[] args = new int[op.getArity()];
+                for (int j = args.length - 1; j >= 0; j--) {
+                    args[j] = stack.pop();
+                    start = starts[args[j]];
+                }
+                key = op.getName() + Arrays.toString(Arrays.stream(args).map(arg -> ids[arg]).toArray());
+                // the impure ones are never equal
+                if (!op.isPure())
+                    key += "#" + i;
+                if (op == Operations.AND || op == Operations.OR)
+                    regionsByStart.computeIfAbsent(starts[i - 1], k -> new ArrayList<>()).add(i - 1);
+            } else if (item instanceof Operand) {
+                Operand operand = (Operand) item;
+                key = "c" + operand.getType() + ":" + operand.getValue();
+            } else {
+                Variable var = (Variable) item;
+                key = "v" + var.getPrefix() + var.getId();
+            }
+            starts[i] = start;
+            Integer id = byKey.putIfAbsent(key, byKey.size());
+            ids[i] = id == null ? byKey.size() - 1 : id;
+            stack.push(i);
+        }
+        if (byKey.size() == size)
+            return rpn;
+
+        // right operands are subtrees, so they're nested: the innermost one
+        // containing a position is the last one opened and not closed yet
+        Stack<Integer> open = new Stack<>();
+        for (int i = 0; i < size; i++) {
+            while (!open.isEmpty() && open.peek() < i)
+                open.pop();
+            List<Integer> opening = regionsByStart.getOrDefault(i, Collections.emptyList());
+            opening.sort(Comparator.reverseOrder());
+            for (int region : opening) {
+                parentRegions.put(region, open.isEmpty() ? -1 : open.peek());
+                open.push(region);
+            }
+            regions[i] = open.isEmpty() ? -1 : open.peek();
+        }
+        return rewrite(rpn, offsets, starts, ids, regions, parentRegions);
+    }
+
+    // The number of local slots used by a program
+    public static int slots(Item[] items) {
+        int ret = 0;
+        for (Item item : items)
+            if (item instanceof Store)
+                ret = Math.max(ret, ((Store) item).getSlot() + 1);
+        return ret;
+    }
+
+    private static boolean contains(int outer, int inner, Map<Integer, Integer> parentRegions) {
+        for (int region = inner; region >= 0; region = parentRegions.get(region))
+            if (region == outer)
+                return true;
+        return outer < 0;
+    }
+
+    private static List<Item> rewrite(List<Item> rpn, List<Integer> offsets, int[] starts, int[] ids, int[] regions,
+                                      Map<Integer, Integer> parentRegions) {
+        int size = rpn.size();
+        // the subtrees from the biggest, so that the ones inside a replaced
+        // subtree are not considered
+        Integer[] bySize = new Integer[size];
+        for (int i = 0; i < size; i++)
+            bySize[i] = i;
+        Arrays.sort(bySize, (a, b) -> a - starts[a] != b - starts[b] ? (b - starts[b]) - (a - starts[a]) : a - b);
+
+        boolean[] removed = new boolean[size];
+        // at the end of a subtree: the slot to store it in, or to load it from
+        int[] stores = new int[size];
+        int[] loads = new int[size];
+        Arrays.fill(stores, -1);
+        Arrays.fill(loads, -1);
+        // the first occurrences of each subtree, that can be reused
+        Map<Integer, List<Integer>> definitions = new HashMap<>();
+        int slots = 0;
+        for (int end : bySize) {
+            if (end == starts[end] || removed[end])
+                continue;
+            List<Integer> previous = definitions.computeIfAbsent(ids[end], id -> new ArrayList<>());
+            Integer definition = null;
+            for (int candidate : previous)
+                if (contains(regions[candidate], regions[end], parentRegions)) {
+                    definition = candidate;
+                    break;
+                }
+            if (definition == null) {
+                previous.add(end);
+                continue;
+            }
+            if (stores[definition] < 0)
+                stores[definition] = slots++;
+            loads[end] = stores[definition];
+            for (int i = starts[end]; i <= end; i++)
+                removed[i] = true;
+        }
+        if (slots == 0)
+            return rpn;
+
+        List<Item> ret = new ArrayList<>(size);
+        List<Integer> retOffsets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            if (loads[i] >= 0) {
+                ret.add(new Load(loads[i]));
+                retOffsets.add(offsets.get(starts[i]));
+                continue;
+            }
+            if (removed[i])
+                continue;
+            ret.add(rpn.get(i));
+            retOffsets.add(offsets.get(i));
+            if (stores[i] >= 0) {
+                ret.add(new Store(stores[i]));
+                retOffsets.add(offsets.get(i));
+            }
+        }
+        offsets.clear();
+        offsets.addAll(retOffsets);
+        return ret;
+    }
+}
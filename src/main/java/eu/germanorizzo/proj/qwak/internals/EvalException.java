@@ -24,8 +24,31 @@
  */
 package eu.germanorizzo.proj.qwak.internals;
 
+// The failure of an expression on some values. With dirty data it happens
+// often, so it's cheap to create: it has no stack trace, that would only
+// show the interpreter anyway.
 public class EvalException extends Exception {
+    public enum Code {
+        // operands of the wrong types, or out of the domain of the operation
+        INVALID_OPERANDS,
+        // division by zero, non-terminating division, overflow
+        ARITHMETIC,
+        // strings (or numbers) that can't be converted to the needed type
+        CONVERSION
+    }
+
+    private final Code code;
+
     public EvalException(String s) {
-        super(s);
+        this(Code.INVALID_OPERANDS, s);
+    }
+
+    public EvalException(Code code, String s) {
+        super(s, null, false, false);
+        this.code = code;
+    }
+
+    public Code getCode() {
+        return code;
     }
 }
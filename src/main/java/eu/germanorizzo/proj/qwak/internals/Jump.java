@@ -0,0 +1,55 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+// Conditional jump, inserted before the right operand of AND and OR to skip
+// it when the left one already decides the result. If the top of the stack is
+// the boolean the jump is for, it's left there as the result of the operation
+// and the evaluation continues from the target position (the one after the
+// operation); otherwise the evaluation continues normally.
+public final class Jump implements Item {
+    private final Operand when;
+    private int target;
+
+    public Jump(boolean when) {
+        this.when = Operand.boolItem(when);
+    }
+
+    public boolean isTaken(Operand top) {
+        return top == when;
+    }
+
+    public Operand getWhen() {
+        return when;
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    public void setTarget(int target) {
+        this.target = target;
+    }
+}
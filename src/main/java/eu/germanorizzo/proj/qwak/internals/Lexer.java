@@ -0,0 +1,260 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits an expression in tokens, in a single pass
+public final class Lexer {
+    public static final class Token {
+        public final Item item;
+        public final int offset;
+
+        private Token(Item item, int offset) {
+            this.item = item;
+            this.offset = offset;
+        }
+    }
+
+    private static final String NULL_CONST = "NULL";
+    private static final String TRUE_CONST = "true";
+    private static final String FALSE_CONST = "false";
+
+    private final String expression;
+    private final List<Token> tokens = new ArrayList<>();
+    private int pos;
+
+    private Lexer(String expression) {
+        this.expression = expression;
+    }
+
+    public static List<Token> tokenize(String expression) throws ParseException {
+        Lexer lexer = new Lexer(expression);
+        lexer.run();
+        return lexer.tokens;
+    }
+
+    private void run() throws ParseException {
+        final int len = expression.length();
+        while (pos < len) {
+            char c = expression.charAt(pos);
+            int start = pos;
+            if (Character.isWhitespace(c))
+                pos++;
+            else if (c == '"' || c == '\'')
+                add(Operand.strItem(literal(c)), start);
+            else if (c == '$')
+                add(new Variable(ValuedItem.Type.STRING, variableName(true)), start);
+            else if (c == '%')
+                add(new Variable(ValuedItem.Type.NUM, variableName(false)), start);
+            else if (c == '?')
+                add(new Variable(ValuedItem.Type.BOOL, variableName(false)), start);
+            else if (isDigit(c) || (c == '.' && isDigit(peek(1))))
+                add(number(false), start);
+            else if (Character.isLetter(c) || c == '_')
+                add(identifier(), start);
+            else if (c == '-' && isUnaryMinus())
+                add(number(true), start);
+            else
+                add(symbol(c), start);
+        }
+    }
+
+    private void add(Item item, int offset) {
+        tokens.add(new Token(item, offset));
+    }
+
+    private char peek(int ahead) {
+        int p = pos + ahead;
+        return p < expression.length() ? expression.charAt(p) : 0;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAllowedForVarName(char c, boolean allowDash) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || (c == '_') || (allowDash && c == '-');
+    }
+
+    // a literal string, delimited by an unescaped " or '
+    private String literal(char quotes) throws ParseException {
+        int start = pos++;
+        StringBuilder sb = null;
+        int chunkStart = pos;
+        while (pos < expression.length()) {
+            char c = expression.charAt(pos);
+            if (c == quotes) {
+                String ret = expression.substring(chunkStart, pos++);
+                return sb == null ? ret : sb.append(ret).toString();
+            }
+            if (c == '\\') {
+                if (sb == null)
+                    sb = new StringBuilder();
+                sb.append(expression, chunkStart, pos);
+                if (++pos < expression.length())
+                    sb.append(expression.charAt(pos++));
+                chunkStart = pos;
+                continue;
+            }
+            pos++;
+        }
+        throw new ParseException("String literal not properly closed", start);
+    }
+
+    // '-' in a$-b is part of the variable name, for string variables
+    private String variableName(boolean allowDash) throws ParseException {
+        int start = pos++;
+        while (pos < expression.length() && isAllowedForVarName(expression.charAt(pos), allowDash))
+            pos++;
+        if (pos == start + 1)
+            throw new ParseException("Missing variable name", start);
+        return expression.substring(start + 1, pos);
+    }
+
+    // a '-' is unary if it doesn't follow a value, and it's followed by a number
+    private boolean isUnaryMinus() {
+        if (!tokens.isEmpty()) {
+            Item prev = tokens.get(tokens.size() - 1).item;
+            if (prev instanceof ValuedItem || prev == Operations.CLOSE_BRACKET)
+                return false;
+        }
+        int p = pos + 1;
+        while (p < expression.length() && Character.isWhitespace(expression.charAt(p)))
+            p++;
+        if (p >= expression.length())
+            return false;
+        char c = expression.charAt(p);
+        return isDigit(c) || (c == '.' && p + 1 < expression.length() && isDigit(expression.charAt(p + 1)));
+    }
+
+    private Operand number(boolean negative) throws ParseException {
+        int start = pos;
+        StringBuilder sb = null;
+        if (negative) {
+            pos++;
+            while (Character.isWhitespace(expression.charAt(pos)))
+                pos++;
+            sb = new StringBuilder("-");
+        }
+        int numStart = pos;
+        while (isDigit(peek(0)))
+            pos++;
+        if (peek(0) == '.') {
+            pos++;
+            while (isDigit(peek(0)))
+                pos++;
+        }
+        // an e without an exponent is not part of the number
+        int mantissaEnd = pos;
+        if (peek(0) == 'e' || peek(0) == 'E') {
+            pos++;
+            if (peek(0) == '+' || peek(0) == '-')
+                pos++;
+            if (!isDigit(peek(0)))
+                pos = mantissaEnd;
+            while (isDigit(peek(0)))
+                pos++;
+        }
+        // a letter starts the next token, as in 5rem 3
+        if (peek(0) == '.')
+            throw new ParseException("Invalid numeric value: " + expression.substring(start, pos + 1), start);
+        String num = sb == null ? expression.substring(numStart, pos) : sb.append(expression, numStart, pos).toString();
+        try {
+            return Operand.numItem(new BigDecimal(num));
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid numeric value: " + num, start);
+        }
+    }
+
+    private Item identifier() throws ParseException {
+        int start = pos;
+        while (pos < expression.length() && isAllowedForVarName(expression.charAt(pos), false))
+            pos++;
+        String word = expression.substring(start, pos);
+
+        if (NULL_CONST.equals(word))
+            return Operand.NULL;
+        if (TRUE_CONST.equalsIgnoreCase(word))
+            return Operand.TRUE;
+        if (FALSE_CONST.equalsIgnoreCase(word))
+            return Operand.FALSE;
+
+        Operator op = Operations.getOperation(word);
+        if (op == null)
+            op = UserFunction.get(word);
+        if (op == null)
+            throw new ParseException("Unknown identifier: " + word, start);
+        return op;
+    }
+
+    private Operations symbol(char c) throws ParseException {
+        int start = pos++;
+        char next = peek(0);
+        switch (c) {
+            case '+':
+                return Operations.ADD;
+            case '-':
+                return Operations.SUBTRACT;
+            case '*':
+                return Operations.MULTIPLY;
+            case '/':
+                return Operations.DIVIDE;
+            case '(':
+                return Operations.OPEN_BRACKET;
+            case ')':
+                return Operations.CLOSE_BRACKET;
+            case ',':
+                return Operations.COMMA;
+            case '~':
+                return Operations.NOT;
+            case '>':
+            case '<':
+                if (next != '=')
+                    return c == '>' ? Operations.GREATER : Operations.LESSER;
+                pos++;
+                return c == '>' ? Operations.GREATER_EQ : Operations.LESSER_EQ;
+            case '=':
+            case '!':
+                if (next == '=') {
+                    pos++;
+                    return c == '=' ? Operations.EQUAL : Operations.NOT_EQUAL;
+                }
+                break;
+            case '&':
+            case '|':
+                if (next == c) {
+                    pos++;
+                    return c == '&' ? Operations.AND : Operations.OR;
+                }
+                break;
+        }
+        throw new ParseException("Unexpected character: " + c, start);
+    }
+}
@@ -28,57 +28,115 @@ import java.math.BigDecimal;
 import java.util.Objects;
 
 public final class Operand extends ValuedItem {
-    private Operand(Type type, String strValue, BigDecimal numValue, Boolean boolValue) {
+    // the String, BigDecimal or Boolean, according to the type
+    private final Object value;
+
+    private Operand(Type type, Object value) {
         super(type);
-        this.strValue = strValue;
-        this.numValue = numValue;
-        this.boolValue = boolValue;
+        this.value = value;
     }
 
-    public static final Operand NULL = new Operand(Type.NULL, null, null, null);
-    public static final Operand TRUE = new Operand(Type.BOOL, null, null, Boolean.TRUE);
-    public static final Operand FALSE = new Operand(Type.BOOL, null, null, Boolean.FALSE);
+    public static final Operand NULL = new Operand(Type.NULL, null);
+    public static final Operand TRUE = new Operand(Type.BOOL, Boolean.TRUE);
+    public static final Operand FALSE = new Operand(Type.BOOL, Boolean.FALSE);
+
+    // the integers most often produced by the operations (lengths, signs,
+    // counters...) are shared
+    private static final int CACHE_LOW = -128;
+    private static final Operand[] SMALL_INTS = new Operand[1024 - CACHE_LOW];
+
+    static {
+        for (int i = 0; i < SMALL_INTS.length; i++)
+            SMALL_INTS[i] = new Operand(Type.NUM, BigDecimal.valueOf(i + CACHE_LOW).stripTrailingZeros());
+    }
 
     public static Operand strItem(String str) {
         if (str == null)
             throw new IllegalArgumentException("NULL argument for string operand");
-        return new Operand(Type.STRING, str, null, null);
+        return new Operand(Type.STRING, str);
     }
 
     public static Operand numItem(BigDecimal num) {
         if (num == null)
             throw new IllegalArgumentException("NULL argument for string operand");
-        return new Operand(Type.NUM, null, num.stripTrailingZeros(), null);
+        // an integer with at most 4 digits, possibly cached
+        if (num.scale() <= 0 && num.precision() - num.scale() <= 4) {
+            int value = num.intValue();
+            if (value >= CACHE_LOW && value - CACHE_LOW < SMALL_INTS.length)
+                return SMALL_INTS[value - CACHE_LOW];
+        }
+        BigDecimal stripped = num.stripTrailingZeros();
+        if (stripped.scale() < num.scale() && stripped.scale() <= 0)
+            return numItem(stripped);
+        return new Operand(Type.NUM, stripped);
+    }
+
+    public static Operand numItem(long num) {
+        if (num >= CACHE_LOW && num - CACHE_LOW < SMALL_INTS.length)
+            return SMALL_INTS[(int) num - CACHE_LOW];
+        return new Operand(Type.NUM, BigDecimal.valueOf(num).stripTrailingZeros());
     }
 
     public static Operand boolItem(boolean val) {
         return val ? TRUE : FALSE;
     }
 
-    private final String strValue;
-    private final BigDecimal numValue;
-    private final Boolean boolValue;
-
     public Object getValue() {
-        switch (getType()) {
-            case STRING:
-                return strValue;
-            case NUM:
-                return numValue;
-            case BOOL:
-                return boolValue;
-            default:
-                return null;
-        }
+        return value;
     }
 
+    // Without intValueExact() and the BigDecimal constructor, that throw
+    // exceptions (slow to create) on invalid values
     public int coalesceToInt(String err) throws EvalException {
         if (getType() != Type.NUM)
             throw new EvalException(err);
-        try {
-            return numValue.intValueExact();
-        } catch (ArithmeticException e) {
+        BigDecimal num = (BigDecimal) value;
+        if (num.scale() > 0 && num.stripTrailingZeros().scale() > 0)
             throw new EvalException(err);
+        // at most 10 digits, so that it's exact as a long
+        if (num.signum() != 0 && num.precision() - num.scale() > 10)
+            throw new EvalException(err);
+        long ret = num.longValue();
+        if (ret != (int) ret)
+            throw new EvalException(err);
+        return (int) ret;
+    }
+
+    // null if the string is not a number
+    public static BigDecimal parseNum(String str) {
+        int i = 0, length = str.length();
+        if (i < length && (str.charAt(i) == '+' || str.charAt(i) == '-'))
+            i++;
+        int digits = 0;
+        boolean point = false;
+        for (; i < length; i++) {
+            char c = str.charAt(i);
+            if (c >= '0' && c <= '9')
+                digits++;
+            else if (c == '.' && !point)
+                point = true;
+            else
+                break;
+        }
+        if (digits == 0)
+            return null;
+        if (i < length && (str.charAt(i) == 'e' || str.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (str.charAt(i) == '+' || str.charAt(i) == '-'))
+                i++;
+            int start = i;
+            while (i < length && str.charAt(i) >= '0' && str.charAt(i) <= '9')
+                i++;
+            if (i == start)
+                return null;
+        }
+        if (i != length)
+            return null;
+        try {
+            return new BigDecimal(str);
+        } catch (NumberFormatException e) {
+            // an exponent out of range
+            return null;
         }
     }
 
@@ -87,6 +145,11 @@ public final class Operand extends ValuedItem {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Operand operand = (Operand) o;
-        return Objects.equals(strValue, operand.strValue) && Objects.equals(getValue(), operand.getValue());
+        return getType() == operand.getType() && Objects.equals(value, operand.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return getType().hashCode() * 31 + Objects.hashCode(value);
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Invocations and total time of something being profiled
+public final class OperationCounter {
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    public void record(long nanos) {
+        invocations.increment();
+        this.nanos.add(nanos);
+    }
+
+    public long getInvocations() {
+        return invocations.sum();
+    }
+
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    public void reset() {
+        invocations.reset();
+        nanos.reset();
+    }
+}
@@ -26,8 +26,11 @@ package eu.germanorizzo.proj.qwak.internals;
 
 import eu.germanorizzo.proj.qwak.internals.operations.*;
 
+import java.util.HashMap;
+import java.util.Map;
+
 //see as reference http://en.cppreference.com/w/cpp/language/operator_precedence
-public enum Operations implements Item {
+public enum Operations implements Operator {
     TO_BOOL("toBool", Type.UNARY_PREFIX, 6, Associativity.LEFT, new ToBool()),
     TO_NUM("toNum", Type.UNARY_PREFIX, 6, Associativity.LEFT, new ToNum()),
     TO_STR("toString", Type.UNARY_PREFIX, 6, Associativity.LEFT, new ToString()),
@@ -80,8 +83,22 @@ public enum Operations implements Item {
         LEFT, RIGHT;
     }
 
+    // The fixed-arity variants avoid allocating the array of the operands;
+    // the operations with a known arity override them.
     public interface Performable {
         public Operand perform(Operand... operands) throws EvalException;
+
+        default Operand perform(Operand o1) throws EvalException {
+            return perform(new Operand[]{o1});
+        }
+
+        default Operand perform(Operand o1, Operand o2) throws EvalException {
+            return perform(new Operand[]{o1, o2});
+        }
+
+        default Operand perform(Operand o1, Operand o2, Operand o3) throws EvalException {
+            return perform(new Operand[]{o1, o2, o3});
+        }
     }
 
     public final String literal;
@@ -99,11 +116,41 @@ public enum Operations implements Item {
         this.action = action;
     }
 
-    public static Operations getOperation(String token) {
-        token = token.trim();
+    private static final Map<String, Operations> BY_LITERAL = new HashMap<>();
+
+    static {
         for (Operations op : Operations.values())
-            if (op.literal.equals(token))
-                return op;
-        return null;
+            BY_LITERAL.put(op.literal, op);
+    }
+
+    @Override
+    public String getName() {
+        return literal;
+    }
+
+    @Override
+    public int getArity() {
+        return type == null ? 0 : type.getOpNum();
+    }
+
+    @Override
+    public Performable getAction() {
+        return action;
+    }
+
+    @Override
+    public boolean isPure() {
+        return true;
+    }
+
+    // The built-in operation that the item performs, or null if it isn't one
+    public static Operations of(Item item) {
+        if (item instanceof TypedOperation)
+            return ((TypedOperation) item).getOperation();
+        return item instanceof Operations ? (Operations) item : null;
+    }
+
+    public static Operations getOperation(String token) {
+        return BY_LITERAL.get(token.trim());
     }
 }
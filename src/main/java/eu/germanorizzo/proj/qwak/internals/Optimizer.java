@@ -0,0 +1,304 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+import eu.germanorizzo.proj.qwak.internals.operations.NullOp;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+// Compile-time simplification of an RPN program: pure operations whose operands
+// are all constants are computed once, and identities (x + 0, x * 1,
+// x && true, ...) are removed when x has a known type. The types that every
+// subtree may have are inferred, so that operations on operands of a single
+// type are specialized for it (see TypedOperation) and, if strict, the
+// operations that would always fail are rejected.
+public final class Optimizer {
+    private static final ValuedItem.Type[] TYPES = ValuedItem.Type.values();
+    private static final int ALL = (1 << TYPES.length) - 1;
+    private static final int NULL = bit(ValuedItem.Type.NULL);
+
+    // Operands of each type, with values that any operation accepts if it
+    // accepts their types
+    private static final Operand[] SAMPLES = {Operand.strItem("1"), Operand.numItem(1), Operand.TRUE, Operand.NULL};
+
+    // For every operation and combination of operand types (see combination()),
+    // the types the result may have, or 0 if the operation fails on them; in
+    // that case, the reason is in ERRORS. They're found by performing the
+    // operations on the samples.
+    private static final int[][] RESULTS = new int[Operations.values().length][];
+    private static final String[][] ERRORS = new String[Operations.values().length][];
+
+    static {
+        for (Operations op : Operations.values()) {
+            if (op.type == null || op.action == NullOp.INSTANCE)
+                continue;
+            int arity = op.getArity();
+            int combinations = 1 << (2 * arity);
+            RESULTS[op.ordinal()] = new int[combinations];
+            ERRORS[op.ordinal()] = new String[combinations];
+            for (int c = 0; c < combinations; c++) {
+                Operand[] operands = new Operand[arity];
+                for (int i = 0; i < arity; i++)
+                    operands[i] = SAMPLES[(c >> (2 * i)) & 3];
+                try {
+                    RESULTS[op.ordinal()][c] = bit(op.action.perform(operands).getType());
+                } catch (EvalException e) {
+                    ERRORS[op.ordinal()][c] = e.getMessage();
+                } catch (RuntimeException e) {
+                    RESULTS[op.ordinal()][c] = ALL;
+                }
+            }
+        }
+    }
+
+    private Optimizer() {
+    }
+
+    // A contiguous subtree of the program being built, and the types it may
+    // have as a mask of bit()
+    private static final class Subtree {
+        private final int start;
+        private final int types;
+
+        private Subtree(int start, int types) {
+            this.start = start;
+            this.types = types;
+        }
+
+        // the type it has for sure (null if it's not known, or if it may be NULL)
+        private ValuedItem.Type type() {
+            return Integer.bitCount(types) == 1 ? TYPES[Integer.numberOfTrailingZeros(types)] : null;
+        }
+    }
+
+    private static int bit(ValuedItem.Type type) {
+        return 1 << type.ordinal();
+    }
+
+    // The offsets are those of the items of the program in the expression,
+    // for the errors; they're updated to those of the items of the result.
+    public static List<Item> optimize(List<Item> rpn, List<Integer> offsets, boolean strict) throws ParseException {
+        List<Item> output = new ArrayList<>(rpn.size());
+        List<Integer> outOffsets = new ArrayList<>(rpn.size());
+        Stack<Subtree> stack = new Stack<>();
+        for (int i = 0; i < rpn.size(); i++) {
+            Item item = rpn.get(i);
+            if (item instanceof Operand) {
+                stack.push(new Subtree(output.size(), bit(((Operand) item).getType())));
+                output.add(item);
+                outOffsets.add(offsets.get(i));
+                continue;
+            }
+            if (item instanceof Variable) {
+                stack.push(new Subtree(output.size(), bit(((Variable) item).getType()) | NULL));
+                output.add(item);
+                outOffsets.add(offsets.get(i));
+                continue;
+            }
+
+            Operator operator = (Operator) item;
+            Subtree[] operands = new Subtree[operator.getArity()];
+            for (int j = operands.length - 1; j >= 0; j--)
+                operands[j] = stack.pop();
+            int start = operands[0].start;
+            if (strict)
+                check(operator, operands, offsets.get(i));
+
+            Operand folded = operator.isPure() ? fold(operator, output, operands) : null;
+            if (folded != null) {
+                // where the folded subtree started
+                int offset = outOffsets.get(start);
+                output.subList(start, output.size()).clear();
+                outOffsets.subList(start, outOffsets.size()).clear();
+                output.add(folded);
+                outOffsets.add(offset);
+                stack.push(new Subtree(start, bit(folded.getType())));
+                continue;
+            }
+
+            if (operator instanceof UserFunction) {
+                ValuedItem.Type returnType = ((UserFunction) operator).getReturnType();
+                output.add(operator);
+                outOffsets.add(offsets.get(i));
+                stack.push(new Subtree(start, returnType == null ? ALL : bit(returnType)));
+                continue;
+            }
+
+            Operations op = (Operations) operator;
+            if (operands.length == 2) {
+                Subtree left = operands[0], right = operands[1];
+                Operand leftConst = constant(output, left, right.start);
+                Operand rightConst = constant(output, right, output.size());
+                if (rightConst != null && isIdentity(op, false, rightConst, left.type())) {
+                    output.subList(right.start, output.size()).clear();
+                    outOffsets.subList(right.start, outOffsets.size()).clear();
+                    stack.push(left);
+                    continue;
+                }
+                if (leftConst != null && isIdentity(op, true, leftConst, right.type())) {
+                    output.remove(left.start);
+                    outOffsets.remove(left.start);
+                    stack.push(new Subtree(left.start, right.types));
+                    continue;
+                }
+                // the right operand would be skipped anyway
+                if (leftConst != null && ((op == Operations.AND && leftConst == Operand.FALSE)
+                        || (op == Operations.OR && leftConst == Operand.TRUE))) {
+                    output.subList(right.start, output.size()).clear();
+                    outOffsets.subList(right.start, outOffsets.size()).clear();
+                    stack.push(left);
+                    continue;
+                }
+            }
+
+            output.add(specialize(op, operands));
+            outOffsets.add(offsets.get(i));
+            int types = 0;
+            for (int c : combinations(operands))
+                types |= RESULTS[op.ordinal()][c];
+            stack.push(new Subtree(start, types == 0 ? ALL : types));
+        }
+        offsets.clear();
+        offsets.addAll(outOffsets);
+        return output;
+    }
+
+    // The maximum number of operands on the stack while evaluating the
+    // program, jumps don't change it
+    public static int maxDepth(Item[] items) {
+        int depth = 0, ret = 0;
+        for (Item item : items) {
+            if (item instanceof ValuedItem || item instanceof Load)
+                depth++;
+            else if (item instanceof Operator)
+                depth -= ((Operator) item).getArity() - 1;
+            ret = Math.max(ret, depth);
+        }
+        return ret;
+    }
+
+    private static Operand constant(List<Item> output, Subtree subtree, int end) {
+        if (end - subtree.start != 1)
+            return null;
+        Item item = output.get(subtree.start);
+        return item instanceof Operand ? (Operand) item : null;
+    }
+
+    // Computes the operation now, if all of its operands are constants. If
+    // it fails, it's left to fail at evaluation time.
+    private static Operand fold(Operator op, List<Item> output, Subtree[] operands) {
+        Operand[] values = new Operand[operands.length];
+        for (int i = 0; i < operands.length; i++) {
+            int end = i < operands.length - 1 ? operands[i + 1].start : output.size();
+            values[i] = constant(output, operands[i], end);
+            if (values[i] == null)
+                return null;
+        }
+        try {
+            return op.getAction().perform(values);
+        } catch (EvalException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // If the constant operand is neutral for the operation, given the type of
+    // the other operand. It must be known, because f.e. NULL + 0 is 0.
+    private static boolean isIdentity(Operations op, boolean constIsLeft, Operand constant, ValuedItem.Type other) {
+        if (other == ValuedItem.Type.NUM && constant.getType() == ValuedItem.Type.NUM) {
+            BigDecimal value = (BigDecimal) constant.getValue();
+            switch (op) {
+                case ADD:
+                    return value.signum() == 0;
+                case SUBTRACT:
+                    return !constIsLeft && value.signum() == 0;
+                case MULTIPLY:
+                    return value.compareTo(BigDecimal.ONE) == 0;
+                case DIVIDE:
+                    return !constIsLeft && value.compareTo(BigDecimal.ONE) == 0;
+                default:
+                    return false;
+            }
+        }
+        if (other == ValuedItem.Type.BOOL)
+            return (op == Operations.AND && constant == Operand.TRUE)
+                    || (op == Operations.OR && constant == Operand.FALSE);
+        return false;
+    }
+
+    // Fails if the operator can't be performed on any of the types that its
+    // operands may have
+    private static void check(Operator operator, Subtree[] operands, int offset) throws ParseException {
+        if (operator instanceof UserFunction) {
+            ValuedItem.Type[] argTypes = ((UserFunction) operator).getArgTypes();
+            for (int i = 0; i < operands.length; i++)
+                if (argTypes[i] != null && (operands[i].types & (bit(argTypes[i]) | NULL)) == 0)
+                    throw new ParseException("Argument " + (i + 1) + " of " + operator.getName()
+                            + " must be " + argTypes[i], offset);
+            return;
+        }
+        if (!(operator instanceof Operations))
+            return;
+        Operations op = (Operations) operator;
+        String error = null;
+        for (int c : combinations(operands)) {
+            if (RESULTS[op.ordinal()][c] != 0)
+                return;
+            error = ERRORS[op.ordinal()][c];
+        }
+        throw new ParseException(error, offset);
+    }
+
+    // The indexes of all the combinations of types that the operands may
+    // have: the type of the i-th operand is in the bits 2i and 2i+1
+    private static int[] combinations(Subtree[] operands) {
+        int[] ret = {0};
+        for (int i = 0; i < operands.length; i++) {
+            int[] next = new int[ret.length * Integer.bitCount(operands[i].types)];
+            int n = 0;
+            for (int c : ret)
+                for (ValuedItem.Type type : TYPES)
+                    if ((operands[i].types & bit(type)) != 0)
+                        next[n++] = c | (type.ordinal() << (2 * i));
+            ret = next;
+        }
+        return ret;
+    }
+
+    // A binary operation on operands that may only be of a type T (or NULL)
+    // can use the implementation for T, when there's one
+    private static Operator specialize(Operations op, Subtree[] operands) {
+        if (operands.length != 2)
+            return op;
+        int types = (operands[0].types | operands[1].types) & ~NULL;
+        if (Integer.bitCount(types) != 1)
+            return op;
+        TypedOperation ret = TypedOperation.of(op, TYPES[Integer.numberOfTrailingZeros(types)]);
+        return ret == null ? op : ret;
+    }
+}
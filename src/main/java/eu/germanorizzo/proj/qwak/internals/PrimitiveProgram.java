@@ -0,0 +1,606 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A program that works only on numbers and booleans, evaluated on an array of
+// primitives instead of on operands: in DOUBLE mode the numbers are IEEE
+// doubles, in LONG mode they are longs and the operations fail instead of
+// overflowing or producing a non integer result. Booleans are 0 and 1.
+public final class PrimitiveProgram {
+    public enum Mode {
+        DOUBLE, LONG
+    }
+
+    private static final int CONST = 0, VAR = 1, JUMP_IF_FALSE = 2, JUMP_IF_TRUE = 3, ADD = 4, SUBTRACT = 5,
+            MULTIPLY = 6, DIVIDE = 7, REMAINDER = 8, POWER = 9, MIN = 10, MAX = 11, ABS = 12, SIGNUM = 13,
+            EQUAL = 14, NOT_EQUAL = 15, GREATER_EQ = 17, LESSER = 18, LESSER_EQ = 19, AND = 20,
+            OR = 21, NOT = 22, TO_BOOL = 23, STORE = 24, LOAD = 25;
+
+    private final Mode mode;
+    // opcodes, each followed by its argument for CONST, VAR, STORE, LOAD and
+    // the jumps
+    private final int[] code;
+    // doubles are stored as their raw bits
+    private final long[] constants;
+    private final Variable[] variables;
+    private final int maxDepth;
+    private final int localSlots;
+    private final boolean isBoolean;
+
+    // The stacks of the evaluations, one per thread and shared by all the
+    // programs, as the one of the interpreter: every evaluation uses the slots
+    // above the ones of the evaluations in progress, first its stack, then its
+    // local slots
+    private static final class Stacks {
+        private double[] doubles = new double[64];
+        private int doublesTop;
+        private long[] longs = new long[64];
+        private int longsTop;
+    }
+
+    private static final ThreadLocal<Stacks> STACKS = ThreadLocal.withInitial(Stacks::new);
+
+    private PrimitiveProgram(Mode mode, int[] code, long[] constants, Variable[] variables, int maxDepth,
+                             int localSlots, boolean isBoolean) {
+        this.mode = mode;
+        this.code = code;
+        this.constants = constants;
+        this.variables = variables;
+        this.maxDepth = maxDepth;
+        this.localSlots = localSlots;
+        this.isBoolean = isBoolean;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isBoolean() {
+        return isBoolean;
+    }
+
+    // The offsets of the items in the expression, for the errors, can be null
+    public static PrimitiveProgram compile(Item[] items, List<Integer> offsets, Mode mode) throws ParseException {
+        int[] code = new int[items.length * 2];
+        int length = 0;
+        List<Long> constants = new ArrayList<>();
+        List<Variable> variables = new ArrayList<>();
+        // where each item starts in the code, to resolve the jumps
+        int[] positions = new int[items.length + 1];
+        boolean[] types = new boolean[items.length]; // true for BOOL, false for NUM
+        int localSlots = CommonSubexpressions.slots(items);
+        boolean[] localTypes = new boolean[localSlots];
+        int depth = 0, maxDepth = 0;
+
+        for (int i = 0; i < items.length; i++) {
+            Item item = items[i];
+            int offset = offsets == null ? 0 : offsets.get(i);
+            positions[i] = length;
+            if (item instanceof Jump) {
+                code[length++] = ((Jump) item).getWhen() == Operand.TRUE ? JUMP_IF_TRUE : JUMP_IF_FALSE;
+                code[length++] = ((Jump) item).getTarget();
+            } else if (item instanceof Store) {
+                code[length++] = STORE;
+                code[length++] = ((Store) item).getSlot();
+                localTypes[((Store) item).getSlot()] = types[depth - 1];
+            } else if (item instanceof Load) {
+                code[length++] = LOAD;
+                code[length++] = ((Load) item).getSlot();
+                types[depth++] = localTypes[((Load) item).getSlot()];
+            } else if (item instanceof Operand) {
+                Operand operand = (Operand) item;
+                code[length++] = CONST;
+                code[length++] = constants.size();
+                constants.add(constant(operand, mode, offset));
+                types[depth++] = operand.getType() == ValuedItem.Type.BOOL;
+            } else if (item instanceof Variable) {
+                Variable var = (Variable) item;
+                if (var.getType() == ValuedItem.Type.STRING)
+                    throw new ParseException("String variables are not supported in " + mode + " mode", offset);
+                code[length++] = VAR;
+                code[length++] = variables.size();
+                variables.add(var);
+                types[depth++] = var.getType() == ValuedItem.Type.BOOL;
+            } else if (item instanceof UserFunction) {
+                throw new ParseException("Function " + ((UserFunction) item).getName() + " is not supported in "
+                        + mode + " mode", offset);
+            } else {
+                Operations op = Operations.of(item);
+                int opNum = op.type.getOpNum();
+                depth -= opNum;
+                boolean first = types[depth], second = opNum > 1 && types[depth + 1];
+                int opcode = opcode(op, first, second, opNum, mode, offset);
+                if (opcode >= 0)
+                    code[length++] = opcode;
+                types[depth++] = isBooleanResult(op);
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        positions[items.length] = length;
+
+        for (int pc = 0; pc < length; pc += 2) {
+            int opcode = code[pc];
+            if (opcode == JUMP_IF_FALSE || opcode == JUMP_IF_TRUE)
+                code[pc + 1] = positions[code[pc + 1]];
+            else if (opcode != CONST && opcode != VAR && opcode != STORE && opcode != LOAD)
+                pc--;
+        }
+
+        long[] constArray = new long[constants.size()];
+        for (int i = 0; i < constArray.length; i++)
+            constArray[i] = constants.get(i);
+        return new PrimitiveProgram(mode, Arrays.copyOf(code, length), constArray,
+                variables.toArray(new Variable[0]), maxDepth, localSlots, types[0]);
+    }
+
+    private static long constant(Operand operand, Mode mode, int offset) throws ParseException {
+        switch (operand.getType()) {
+            case BOOL:
+                return operand == Operand.TRUE ? 1 : 0;
+            case NUM: {
+                BigDecimal value = (BigDecimal) operand.getValue();
+                if (mode == Mode.DOUBLE)
+                    return Double.doubleToRawLongBits(value.doubleValue());
+                try {
+                    return value.longValueExact();
+                } catch (ArithmeticException e) {
+                    throw new ParseException("Constant " + value + " is not a long integer", offset);
+                }
+            }
+            default:
+                throw new ParseException(operand.getType() + " values are not supported in " + mode + " mode", offset);
+        }
+    }
+
+    // The opcode for the operation, -1 if it's a no-op (f.e. toNum() on a
+    // number, or on a boolean as they are 0 and 1 anyway)
+    private static int opcode(Operations op, boolean first, boolean second, int opNum, Mode mode, int offset)
+            throws ParseException {
+        boolean onBooleans = first && (opNum == 1 || second);
+        boolean onNumbers = !first && (opNum == 1 || !second);
+        switch (op) {
+            case TO_NUM:
+                return -1;
+            case TO_BOOL:
+                return first ? -1 : TO_BOOL;
+            case EQUAL:
+                if (first == second)
+                    return EQUAL;
+                break;
+            case NOT_EQUAL:
+                if (first == second)
+                    return NOT_EQUAL;
+                break;
+            case AND:
+                if (onBooleans)
+                    return AND;
+                break;
+            case OR:
+                if (onBooleans)
+                    return OR;
+                break;
+            case NOT:
+                if (onBooleans)
+                    return NOT;
+                break;
+            default:
+                if (onNumbers) {
+                    switch (op) {
+                        case ADD:
+                            return ADD;
+                        case SUBTRACT:
+                            return SUBTRACT;
+                        case MULTIPLY:
+                            return MULTIPLY;
+                        case DIVIDE:
+                            return DIVIDE;
+                        case REMAINDER:
+                            return REMAINDER;
+                        case POWER:
+                            return POWER;
+                        case MIN:
+                            return MIN;
+                        case MAX:
+                            return MAX;
+                        case ABS:
+                            return ABS;
+                        case SIGNUM:
+                            return SIGNUM;
+                        // as for BigDecimals (see GreaterThan), > is >=
+                        case GREATER:
+                        case GREATER_EQ:
+                            return GREATER_EQ;
+                        case LESSER:
+                            return LESSER;
+                        case LESSER_EQ:
+                            return LESSER_EQ;
+                    }
+                }
+        }
+        throw new ParseException("Operation " + op + " is not supported on these operands in " + mode + " mode",
+                offset);
+    }
+
+    private static boolean isBooleanResult(Operations op) {
+        switch (op) {
+            case EQUAL:
+            case NOT_EQUAL:
+            case GREATER:
+            case GREATER_EQ:
+            case LESSER:
+            case LESSER_EQ:
+            case AND:
+            case OR:
+            case NOT:
+            case TO_BOOL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private PrimitiveResolver primitive(VariableResolver variables) {
+        if (variables instanceof PrimitiveResolver)
+            return (PrimitiveResolver) variables;
+        return new PrimitiveResolver() {
+            @Override
+            public Operand resolve(Variable variable) throws EvalException {
+                return variables.resolve(variable);
+            }
+
+            @Override
+            public double resolveDouble(Variable variable) throws EvalException {
+                return toNumber(variable, variables.resolve(variable)).doubleValue();
+            }
+
+            @Override
+            public long resolveLong(Variable variable) throws EvalException {
+                try {
+                    return toNumber(variable, variables.resolve(variable)).longValueExact();
+                } catch (ArithmeticException e) {
+                    throw new EvalException(EvalException.Code.CONVERSION,
+                            "Variable " + variable.getPrefix() + variable.getId() + " is not a long integer");
+                }
+            }
+
+            @Override
+            public boolean resolveBoolean(Variable variable) throws EvalException {
+                Operand value = variables.resolve(variable);
+                if (value.getType() != ValuedItem.Type.BOOL)
+                    throw notSet(variable);
+                return value == Operand.TRUE;
+            }
+        };
+    }
+
+    private static BigDecimal toNumber(Variable variable, Operand value) throws EvalException {
+        if (value.getType() != ValuedItem.Type.NUM)
+            throw notSet(variable);
+        return (BigDecimal) value.getValue();
+    }
+
+    public static EvalException notSet(Variable variable) {
+        return new EvalException("Variable " + variable.getPrefix() + variable.getId() + " is not set");
+    }
+
+    public Operand run(VariableResolver variables) throws EvalException {
+        if (mode == Mode.DOUBLE) {
+            double ret = runDouble(variables);
+            if (isBoolean)
+                return Operand.boolItem(ret != 0);
+            if (Double.isNaN(ret) || Double.isInfinite(ret))
+                throw new EvalException(EvalException.Code.ARITHMETIC, "The result is not a finite number: " + ret);
+            return Operand.numItem(BigDecimal.valueOf(ret));
+        }
+        long ret = runLong(variables);
+        return isBoolean ? Operand.boolItem(ret != 0) : Operand.numItem(ret);
+    }
+
+    public double runDouble(VariableResolver resolver) throws EvalException {
+        if (mode == Mode.LONG)
+            return runLong(resolver);
+
+        PrimitiveResolver variables = primitive(resolver);
+        Stacks stacks = STACKS.get();
+        int base = stacks.doublesTop;
+        int size = maxDepth + localSlots;
+        if (base + size > stacks.doubles.length)
+            stacks.doubles = Arrays.copyOf(stacks.doubles, Math.max(base + size, stacks.doubles.length * 2));
+        double[] stack = stacks.doubles;
+        stacks.doublesTop = base + size;
+        try {
+            int sp = base;
+            int locals = base + maxDepth;
+            for (int pc = 0; pc < code.length; pc++) {
+                switch (code[pc]) {
+                    case CONST:
+                        stack[sp++] = Double.longBitsToDouble(constants[code[++pc]]);
+                        break;
+                    case VAR: {
+                        Variable var = this.variables[code[++pc]];
+                        stack[sp++] = var.getType() == ValuedItem.Type.BOOL
+                                ? (variables.resolveBoolean(var) ? 1 : 0) : variables.resolveDouble(var);
+                        break;
+                    }
+                    case STORE:
+                        stack[locals + code[++pc]] = stack[sp - 1];
+                        break;
+                    case LOAD:
+                        stack[sp++] = stack[locals + code[++pc]];
+                        break;
+                    case JUMP_IF_FALSE:
+                        pc++;
+                        if (stack[sp - 1] == 0)
+                            pc = code[pc] - 1;
+                        break;
+                    case JUMP_IF_TRUE:
+                        pc++;
+                        if (stack[sp - 1] != 0)
+                            pc = code[pc] - 1;
+                        break;
+                    case ADD:
+                        sp--;
+                        stack[sp - 1] += stack[sp];
+                        break;
+                    case SUBTRACT:
+                        sp--;
+                        stack[sp - 1] -= stack[sp];
+                        break;
+                    case MULTIPLY:
+                        sp--;
+                        stack[sp - 1] *= stack[sp];
+                        break;
+                    case DIVIDE:
+                        sp--;
+                        if (stack[sp] == 0)
+                            throw new EvalException(EvalException.Code.ARITHMETIC, "Division by zero");
+                        stack[sp - 1] /= stack[sp];
+                        break;
+                    case REMAINDER:
+                        sp--;
+                        if (stack[sp] == 0)
+                            throw new EvalException(EvalException.Code.ARITHMETIC, "Division by zero");
+                        stack[sp - 1] %= stack[sp];
+                        break;
+                    case POWER: {
+                        sp--;
+                        double exp = stack[sp];
+                        if (exp != Math.rint(exp) || Math.abs(exp) > Integer.MAX_VALUE)
+                            throw new EvalException("Second argument for POWER must be an integer");
+                        stack[sp - 1] = Math.pow(stack[sp - 1], exp);
+                        break;
+                    }
+                    case MIN:
+                        sp--;
+                        stack[sp - 1] = Math.min(stack[sp - 1], stack[sp]);
+                        break;
+                    case MAX:
+                        sp--;
+                        stack[sp - 1] = Math.max(stack[sp - 1], stack[sp]);
+                        break;
+                    case ABS:
+                        stack[sp - 1] = Math.abs(stack[sp - 1]);
+                        break;
+                    case SIGNUM:
+                        stack[sp - 1] = Math.signum(stack[sp - 1]);
+                        break;
+                    case EQUAL:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0;
+                        break;
+                    case NOT_EQUAL:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] != stack[sp] ? 1 : 0;
+                        break;
+                    case GREATER_EQ:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] >= stack[sp] ? 1 : 0;
+                        break;
+                    case LESSER:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0;
+                        break;
+                    case LESSER_EQ:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] <= stack[sp] ? 1 : 0;
+                        break;
+                    case AND:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] != 0 && stack[sp] != 0 ? 1 : 0;
+                        break;
+                    case OR:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] != 0 || stack[sp] != 0 ? 1 : 0;
+                        break;
+                    case NOT:
+                        stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                        break;
+                    case TO_BOOL:
+                        stack[sp - 1] = stack[sp - 1] != 0 ? 1 : 0;
+                        break;
+                }
+            }
+            return stack[base];
+        } finally {
+            stacks.doublesTop = base;
+        }
+    }
+
+    public long runLong(VariableResolver resolver) throws EvalException {
+        if (mode == Mode.DOUBLE)
+            throw new IllegalStateException("Not a LONG program");
+
+        PrimitiveResolver variables = primitive(resolver);
+        Stacks stacks = STACKS.get();
+        int base = stacks.longsTop;
+        int size = maxDepth + localSlots;
+        if (base + size > stacks.longs.length)
+            stacks.longs = Arrays.copyOf(stacks.longs, Math.max(base + size, stacks.longs.length * 2));
+        long[] stack = stacks.longs;
+        stacks.longsTop = base + size;
+        try {
+            int sp = base;
+            int locals = base + maxDepth;
+            for (int pc = 0; pc < code.length; pc++) {
+                switch (code[pc]) {
+                    case CONST:
+                        stack[sp++] = constants[code[++pc]];
+                        break;
+                    case VAR: {
+                        Variable var = this.variables[code[++pc]];
+                        stack[sp++] = var.getType() == ValuedItem.Type.BOOL
+                                ? (variables.resolveBoolean(var) ? 1 : 0) : variables.resolveLong(var);
+                        break;
+                    }
+                    case STORE:
+                        stack[locals + code[++pc]] = stack[sp - 1];
+                        break;
+                    case LOAD:
+                        stack[sp++] = stack[locals + code[++pc]];
+                        break;
+                    case JUMP_IF_FALSE:
+                        pc++;
+                        if (stack[sp - 1] == 0)
+                            pc = code[pc] - 1;
+                        break;
+                    case JUMP_IF_TRUE:
+                        pc++;
+                        if (stack[sp - 1] != 0)
+                            pc = code[pc] - 1;
+                        break;
+                    case ADD:
+                        sp--;
+                        stack[sp - 1] = Math.addExact(stack[sp - 1], stack[sp]);
+                        break;
+                    case SUBTRACT:
+                        sp--;
+                        stack[sp - 1] = Math.subtractExact(stack[sp - 1], stack[sp]);
+                        break;
+                    case MULTIPLY:
+                        sp--;
+                        stack[sp - 1] = Math.multiplyExact(stack[sp - 1], stack[sp]);
+                        break;
+                    case DIVIDE: {
+                        sp--;
+                        long a = stack[sp - 1], b = stack[sp];
+                        if (b == 0)
+                            throw new EvalException(EvalException.Code.ARITHMETIC, "Division by zero");
+                        if (a % b != 0)
+                            throw new EvalException(EvalException.Code.ARITHMETIC, "The result of DIVIDE is not an integer");
+                        if (a == Long.MIN_VALUE && b == -1)
+                            throw new ArithmeticException();
+                        stack[sp - 1] = a / b;
+                        break;
+                    }
+                    case REMAINDER:
+                        sp--;
+                        if (stack[sp] == 0)
+                            throw new EvalException(EvalException.Code.ARITHMETIC, "Division by zero");
+                        stack[sp - 1] %= stack[sp];
+                        break;
+                    case POWER:
+                        sp--;
+                        stack[sp - 1] = pow(stack[sp - 1], stack[sp]);
+                        break;
+                    case MIN:
+                        sp--;
+                        stack[sp - 1] = Math.min(stack[sp - 1], stack[sp]);
+                        break;
+                    case MAX:
+                        sp--;
+                        stack[sp - 1] = Math.max(stack[sp - 1], stack[sp]);
+                        break;
+                    case ABS:
+                        if (stack[sp - 1] == Long.MIN_VALUE)
+                            throw new ArithmeticException();
+                        stack[sp - 1] = Math.abs(stack[sp - 1]);
+                        break;
+                    case SIGNUM:
+                        stack[sp - 1] = Long.signum(stack[sp - 1]);
+                        break;
+                    case EQUAL:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0;
+                        break;
+                    case NOT_EQUAL:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] != stack[sp] ? 1 : 0;
+                        break;
+                    case GREATER_EQ:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] >= stack[sp] ? 1 : 0;
+                        break;
+                    case LESSER:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0;
+                        break;
+                    case LESSER_EQ:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] <= stack[sp] ? 1 : 0;
+                        break;
+                    case AND:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] != 0 && stack[sp] != 0 ? 1 : 0;
+                        break;
+                    case OR:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] != 0 || stack[sp] != 0 ? 1 : 0;
+                        break;
+                    case NOT:
+                        stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                        break;
+                    case TO_BOOL:
+                        stack[sp - 1] = stack[sp - 1] != 0 ? 1 : 0;
+                        break;
+                }
+            }
+            return stack[base];
+        } catch (ArithmeticException e) {
+            throw new EvalException(EvalException.Code.ARITHMETIC, "Overflow in LONG mode");
+        } finally {
+            stacks.longsTop = base;
+        }
+    }
+
+    private static long pow(long base, long exp) throws EvalException {
+        if (exp < 0)
+            throw new EvalException("Second argument for POWER must be a non-negative integer in LONG mode");
+        long ret = 1;
+        while (exp > 0) {
+            if ((exp & 1) != 0)
+                ret = Math.multiplyExact(ret, base);
+            exp >>= 1;
+            if (exp > 0)
+                base = Math.multiplyExact(base, base);
+        }
+        return ret;
+    }
+}
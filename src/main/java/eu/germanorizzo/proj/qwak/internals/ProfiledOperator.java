@@ -0,0 +1,110 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+// Wraps an operator to record the time spent performing it into some
+// counters, for the profiling mode; it behaves as the wrapped one otherwise.
+public final class ProfiledOperator implements Operator {
+    private final Operator operator;
+    private final Operations.Performable wrapped;
+    private final OperationCounter[] counters;
+    private final Operations.Performable action = new Operations.Performable() {
+        @Override
+        public Operand perform(Operand... operands) throws EvalException {
+            long start = System.nanoTime();
+            try {
+                return wrapped.perform(operands);
+            } finally {
+                record(start);
+            }
+        }
+
+        @Override
+        public Operand perform(Operand o1) throws EvalException {
+            long start = System.nanoTime();
+            try {
+                return wrapped.perform(o1);
+            } finally {
+                record(start);
+            }
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            long start = System.nanoTime();
+            try {
+                return wrapped.perform(o1, o2);
+            } finally {
+                record(start);
+            }
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2, Operand o3) throws EvalException {
+            long start = System.nanoTime();
+            try {
+                return wrapped.perform(o1, o2, o3);
+            } finally {
+                record(start);
+            }
+        }
+    };
+
+    public ProfiledOperator(Operator operator, OperationCounter... counters) {
+        this.operator = operator;
+        this.wrapped = operator.getAction();
+        this.counters = counters;
+    }
+
+    private void record(long start) {
+        long nanos = System.nanoTime() - start;
+        for (OperationCounter counter : counters)
+            counter.record(nanos);
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    @Override
+    public String getName() {
+        return operator.getName();
+    }
+
+    @Override
+    public int getArity() {
+        return operator.getArity();
+    }
+
+    @Override
+    public Operations.Performable getAction() {
+        return action;
+    }
+
+    @Override
+    public boolean isPure() {
+        return operator.isPure();
+    }
+}
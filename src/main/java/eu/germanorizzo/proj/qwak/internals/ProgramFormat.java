@@ -0,0 +1,362 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary encoding of a compiled program, to load it again without parsing.
+// After the magic number and the version, the stack sizes, the variables (by
+// slot), the constants and the names of the operators, then the items as an
+// opcode and an index in those tables. Numbers are variable-length ints.
+// Operators are stored by name, so that the format doesn't depend on the
+// order of the built-in ones; user functions must be registered again
+// before loading. Version 2 added the operations specialized for a type.
+public final class ProgramFormat {
+    private static final int MAGIC = 0x5157414B; // "QWAK"
+    private static final int VERSION = 2;
+
+    private static final int CONST = 0;
+    private static final int VAR = 1;
+    private static final int OPERATION = 2;
+    private static final int FUNCTION = 3;
+    private static final int JUMP_TRUE = 4;
+    private static final int JUMP_FALSE = 5;
+    private static final int STORE = 6;
+    private static final int LOAD = 7;
+    private static final int NUM_OPERATION = 8;
+    private static final int STRING_OPERATION = 9;
+
+    public static final class Program {
+        public final Item[] items;
+        public final Variable[] variables;
+        public final int maxDepth;
+        public final int localSlots;
+
+        private Program(Item[] items, Variable[] variables, int maxDepth, int localSlots) {
+            this.items = items;
+            this.variables = variables;
+            this.maxDepth = maxDepth;
+            this.localSlots = localSlots;
+        }
+    }
+
+    private ProgramFormat() {
+    }
+
+    public static void write(Item[] items, Variable[] variables, int maxDepth, int localSlots, OutputStream out)
+            throws IOException {
+        List<Operand> constants = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> nameIndexes = new HashMap<>();
+        ByteArrayOutputStream codeBytes = new ByteArrayOutputStream(items.length * 2);
+        DataOutputStream code = new DataOutputStream(codeBytes);
+        for (Item item : items) {
+            if (item instanceof ProfiledOperator)
+                item = ((ProfiledOperator) item).getOperator();
+            if (item instanceof Operand) {
+                code.writeByte(CONST);
+                writeInt(code, constants.size());
+                constants.add((Operand) item);
+            } else if (item instanceof Variable) {
+                code.writeByte(VAR);
+                writeInt(code, ((Variable) item).getSlot());
+            } else if (item instanceof Jump) {
+                Jump jump = (Jump) item;
+                code.writeByte(jump.getWhen() == Operand.TRUE ? JUMP_TRUE : JUMP_FALSE);
+                writeInt(code, jump.getTarget());
+            } else if (item instanceof Store) {
+                code.writeByte(STORE);
+                writeInt(code, ((Store) item).getSlot());
+            } else if (item instanceof Load) {
+                code.writeByte(LOAD);
+                writeInt(code, ((Load) item).getSlot());
+            } else {
+                Operations op = Operations.of(item);
+                String name = op != null ? op.name() : ((Operator) item).getName();
+                Integer index = nameIndexes.get(name);
+                if (index == null) {
+                    index = names.size();
+                    nameIndexes.put(name, index);
+                    names.add(name);
+                }
+                if (item instanceof TypedOperation)
+                    code.writeByte(((TypedOperation) item).getType() == ValuedItem.Type.NUM ? NUM_OPERATION
+                            : STRING_OPERATION);
+                else
+                    code.writeByte(op != null ? OPERATION : FUNCTION);
+                writeInt(code, index);
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        writeInt(data, maxDepth);
+        writeInt(data, localSlots);
+        writeInt(data, variables.length);
+        for (Variable var : variables) {
+            data.writeByte(var.getType().ordinal());
+            writeString(data, var.getId());
+        }
+        writeInt(data, constants.size());
+        for (Operand constant : constants) {
+            data.writeByte(constant.getType().ordinal());
+            switch (constant.getType()) {
+                case STRING:
+                    writeString(data, (String) constant.getValue());
+                    break;
+                case NUM:
+                    BigDecimal num = (BigDecimal) constant.getValue();
+                    byte[] unscaled = num.unscaledValue().toByteArray();
+                    data.writeInt(num.scale());
+                    writeInt(data, unscaled.length);
+                    data.write(unscaled);
+                    break;
+                case BOOL:
+                    data.writeBoolean(constant == Operand.TRUE);
+                    break;
+            }
+        }
+        writeInt(data, names.size());
+        for (String name : names)
+            writeString(data, name);
+        writeInt(data, items.length);
+        codeBytes.writeTo(data);
+        data.flush();
+    }
+
+    // Reads a program from the current position of the buffer, leaving it after
+    // the program
+    public static Program read(ByteBuffer in) throws ParseException {
+        int start = in.position();
+        try {
+            if (in.getInt() != MAGIC)
+                throw new ParseException("Not a compiled expression", start);
+            int version = in.get();
+            if (version < 1 || version > VERSION)
+                throw new ParseException("Unsupported version " + version, start + 4);
+            int maxDepth = readInt(in);
+            int localSlots = readInt(in);
+
+            ValuedItem.Type[] types = ValuedItem.Type.values();
+            Variable[] variables = new Variable[readCount(in)];
+            for (int i = 0; i < variables.length; i++) {
+                variables[i] = new Variable(types[in.get()], readString(in));
+                variables[i].setSlot(i);
+            }
+            Operand[] constants = new Operand[readCount(in)];
+            for (int i = 0; i < constants.length; i++)
+                switch (types[in.get()]) {
+                    case STRING:
+                        constants[i] = Operand.strItem(readString(in));
+                        break;
+                    case NUM:
+                        int scale = in.getInt();
+                        byte[] unscaled = new byte[readCount(in)];
+                        in.get(unscaled);
+                        constants[i] = Operand.numItem(new BigDecimal(new BigInteger(unscaled), scale));
+                        break;
+                    case BOOL:
+                        constants[i] = Operand.boolItem(in.get() != 0);
+                        break;
+                    default:
+                        constants[i] = Operand.NULL;
+                }
+            String[] names = new String[readCount(in)];
+            for (int i = 0; i < names.length; i++)
+                names[i] = readString(in);
+
+            Item[] items = new Item[readCount(in)];
+            int[] positions = new int[items.length];
+            for (int i = 0; i < items.length; i++) {
+                int position = in.position();
+                positions[i] = position;
+                int opcode = in.get();
+                int arg = readInt(in);
+                switch (opcode) {
+                    case CONST:
+                        items[i] = constants[arg];
+                        break;
+                    case VAR:
+                        items[i] = variables[arg];
+                        break;
+                    case OPERATION:
+                        items[i] = Operations.valueOf(names[arg]);
+                        break;
+                    case NUM_OPERATION:
+                    case STRING_OPERATION:
+                        items[i] = TypedOperation.of(Operations.valueOf(names[arg]),
+                                opcode == NUM_OPERATION ? ValuedItem.Type.NUM : ValuedItem.Type.STRING);
+                        if (items[i] == null)
+                            throw new ParseException("Corrupted compiled expression", position);
+                        break;
+                    case FUNCTION:
+                        items[i] = UserFunction.get(names[arg]);
+                        if (items[i] == null)
+                            throw new ParseException("Unknown function " + names[arg], position);
+                        break;
+                    case JUMP_TRUE:
+                    case JUMP_FALSE:
+                        Jump jump = new Jump(opcode == JUMP_TRUE);
+                        jump.setTarget(arg);
+                        items[i] = jump;
+                        break;
+                    case STORE:
+                        items[i] = new Store(arg);
+                        break;
+                    case LOAD:
+                        items[i] = new Load(arg);
+                        break;
+                    default:
+                        throw new ParseException("Unknown opcode " + opcode, position);
+                }
+            }
+            verify(items, positions, maxDepth, localSlots, start);
+            return new Program(items, variables, maxDepth, localSlots);
+        } catch (BufferUnderflowException e) {
+            throw new ParseException("Truncated compiled expression", in.position());
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new ParseException("Corrupted compiled expression", in.position());
+        }
+    }
+
+    // The interpreter trusts the program: the stack must balance, also where
+    // the jumps land, and the locals must be written before being read
+    private static void verify(Item[] items, int[] positions, int maxDepth, int localSlots, int start)
+            throws ParseException {
+        if (maxDepth != Optimizer.maxDepth(items) || localSlots != CommonSubexpressions.slots(items))
+            throw new ParseException("Corrupted compiled expression: wrong stack sizes", start);
+        // the depth expected where a jump lands, -1 if none
+        int[] landings = new int[items.length + 1];
+        Arrays.fill(landings, -1);
+        // the locals written on every path to where a jump lands, null if none
+        boolean[][] landingStored = new boolean[items.length + 1][];
+        boolean[] stored = new boolean[localSlots];
+        int depth = 0;
+        for (int i = 0; i < items.length; i++) {
+            Item item = items[i];
+            if (landings[i] >= 0 && landings[i] != depth)
+                throw new ParseException("Corrupted compiled expression: unbalanced jump", positions[i]);
+            if (landingStored[i] != null)
+                for (int slot = 0; slot < localSlots; slot++)
+                    stored[slot] &= landingStored[i][slot];
+            int needed = 0, pushed = 0;
+            if (item instanceof Jump) {
+                int target = ((Jump) item).getTarget();
+                if (target <= i || target > items.length || (landings[target] >= 0 && landings[target] != depth))
+                    throw new ParseException("Corrupted compiled expression: wrong jump target", positions[i]);
+                landings[target] = depth;
+                if (landingStored[target] == null)
+                    landingStored[target] = stored.clone();
+                else
+                    for (int slot = 0; slot < localSlots; slot++)
+                        landingStored[target][slot] &= stored[slot];
+                needed = 1;
+                pushed = 1;
+            } else if (item instanceof Store) {
+                stored[((Store) item).getSlot()] = true;
+                needed = 1;
+                pushed = 1;
+            } else if (item instanceof Load) {
+                if (!stored[((Load) item).getSlot()])
+                    throw new ParseException("Corrupted compiled expression: local read before written", positions[i]);
+                pushed = 1;
+            } else if (item instanceof Operator) {
+                needed = ((Operator) item).getArity();
+                pushed = 1;
+            } else
+                pushed = 1;
+            if (depth < needed)
+                throw new ParseException("Corrupted compiled expression: wrong number of operands", positions[i]);
+            depth += pushed - needed;
+        }
+        if (depth != 1 || (landings[items.length] >= 0 && landings[items.length] != depth))
+            throw new ParseException("Corrupted compiled expression: wrong number of operands", start);
+    }
+
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readInt(ByteBuffer in) {
+        int ret = 0;
+        for (int shift = 0; ; shift += 7) {
+            // 5 bytes are enough for an int
+            if (shift > 28)
+                throw new IllegalArgumentException("Int too long");
+            byte b = in.get();
+            ret |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return ret;
+        }
+    }
+
+    // the number of the elements that follow, of a byte at least: it must fit
+    // in what's left, so that a corrupted one doesn't allocate too much
+    private static int readCount(ByteBuffer in) {
+        int ret = readInt(in);
+        if (ret < 0)
+            throw new IllegalArgumentException("Negative count " + ret);
+        if (ret > in.remaining())
+            throw new BufferUnderflowException();
+        return ret;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readCount(in);
+        if (!in.hasArray()) {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String ret = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return ret;
+    }
+}
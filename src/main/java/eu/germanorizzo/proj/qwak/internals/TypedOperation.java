@@ -0,0 +1,339 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+import eu.germanorizzo.proj.qwak.internals.operations.BinaryOperation;
+import eu.germanorizzo.proj.qwak.internals.operations.Divide;
+import eu.germanorizzo.proj.qwak.internals.operations.Remainder;
+
+import java.math.BigDecimal;
+
+// A built-in operation specialized for operands of a type, chosen at compile
+// time when the operands can only be of that type (or NULL). It checks the
+// types once and computes the result directly; operands of other types (i.e.
+// NULL) are given to the generic implementation, so the results are the same.
+public final class TypedOperation implements Operator {
+    private final Operations operation;
+    private final ValuedItem.Type type;
+    private final Operations.Performable action;
+
+    private TypedOperation(Operations operation, ValuedItem.Type type, Operations.Performable action) {
+        this.operation = operation;
+        this.type = type;
+        this.action = action;
+    }
+
+    // null if there's no specialization for the operation and the type
+    public static TypedOperation of(Operations operation, ValuedItem.Type type) {
+        Operations.Performable action = null;
+        if (type == ValuedItem.Type.NUM)
+            switch (operation) {
+                case ADD:
+                    action = new NumAdd();
+                    break;
+                case SUBTRACT:
+                    action = new NumSubtract();
+                    break;
+                case MULTIPLY:
+                    action = new NumMultiply();
+                    break;
+                case DIVIDE:
+                    action = new NumDivide();
+                    break;
+                case REMAINDER:
+                    action = new NumRemainder();
+                    break;
+                case MIN:
+                    action = new NumMin();
+                    break;
+                case MAX:
+                    action = new NumMax();
+                    break;
+                case GREATER:
+                case GREATER_EQ:
+                    action = new NumGreaterEq(operation);
+                    break;
+                case LESSER:
+                    action = new NumLesser();
+                    break;
+                case LESSER_EQ:
+                    action = new NumLesserEq();
+                    break;
+            }
+        else if (type == ValuedItem.Type.STRING)
+            switch (operation) {
+                case ADD:
+                    action = new StrConcat();
+                    break;
+                case GREATER:
+                case GREATER_EQ:
+                    action = new StrGreaterEq(operation);
+                    break;
+                case LESSER:
+                    action = new StrLesser();
+                    break;
+                case LESSER_EQ:
+                    action = new StrLesserEq();
+                    break;
+            }
+        return action == null ? null : new TypedOperation(operation, type, action);
+    }
+
+    public Operations getOperation() {
+        return operation;
+    }
+
+    public ValuedItem.Type getType() {
+        return type;
+    }
+
+    @Override
+    public String getName() {
+        return operation.getName();
+    }
+
+    @Override
+    public int getArity() {
+        return operation.getArity();
+    }
+
+    @Override
+    public Operations.Performable getAction() {
+        return action;
+    }
+
+    @Override
+    public boolean isPure() {
+        return true;
+    }
+
+    private static boolean nums(Operand o1, Operand o2) {
+        return o1.getType() == ValuedItem.Type.NUM && o2.getType() == ValuedItem.Type.NUM;
+    }
+
+    private static boolean strings(Operand o1, Operand o2) {
+        return o1.getType() == ValuedItem.Type.STRING && o2.getType() == ValuedItem.Type.STRING;
+    }
+
+    private static int compareNums(Operand o1, Operand o2) {
+        return ((BigDecimal) o1.getValue()).compareTo((BigDecimal) o2.getValue());
+    }
+
+    private static int compareStrings(Operand o1, Operand o2) {
+        return ((String) o1.getValue()).compareTo((String) o2.getValue());
+    }
+
+    // Each one is a class of its own, so that the JIT sees a single
+    // implementation at each call site.
+
+    private static final class NumAdd extends BinaryOperation {
+        NumAdd() {
+            super("ADD");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!nums(o1, o2))
+                return Operations.ADD.action.perform(o1, o2);
+            return Operand.numItem(((BigDecimal) o1.getValue()).add((BigDecimal) o2.getValue()));
+        }
+    }
+
+    private static final class NumSubtract extends BinaryOperation {
+        NumSubtract() {
+            super("SUBTRACT");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!nums(o1, o2))
+                return Operations.SUBTRACT.action.perform(o1, o2);
+            return Operand.numItem(((BigDecimal) o1.getValue()).subtract((BigDecimal) o2.getValue()));
+        }
+    }
+
+    private static final class NumMultiply extends BinaryOperation {
+        NumMultiply() {
+            super("MULTIPLY");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!nums(o1, o2))
+                return Operations.MULTIPLY.action.perform(o1, o2);
+            return Operand.numItem(((BigDecimal) o1.getValue()).multiply((BigDecimal) o2.getValue()));
+        }
+    }
+
+    private static final class NumDivide extends BinaryOperation {
+        NumDivide() {
+            super("DIVIDE");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!nums(o1, o2))
+                return Operations.DIVIDE.action.perform(o1, o2);
+            return Operand.numItem(Divide.divide((BigDecimal) o1.getValue(), (BigDecimal) o2.getValue()));
+        }
+    }
+
+    private static final class NumRemainder extends BinaryOperation {
+        NumRemainder() {
+            super("REMAINDER");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!nums(o1, o2))
+                return Operations.REMAINDER.action.perform(o1, o2);
+            return Operand.numItem(Remainder.remainder((BigDecimal) o1.getValue(), (BigDecimal) o2.getValue()));
+        }
+    }
+
+    private static final class NumMin extends BinaryOperation {
+        NumMin() {
+            super("MIN");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!nums(o1, o2))
+                return Operations.MIN.action.perform(o1, o2);
+            return compareNums(o1, o2) > 0 ? o2 : o1;
+        }
+    }
+
+    private static final class NumMax extends BinaryOperation {
+        NumMax() {
+            super("MAX");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!nums(o1, o2))
+                return Operations.MAX.action.perform(o1, o2);
+            return compareNums(o1, o2) > 0 ? o1 : o2;
+        }
+    }
+
+    // GREATER is the same as GREATER_EQ on numbers and strings
+    private static final class NumGreaterEq extends BinaryOperation {
+        private final Operations.Performable generic;
+
+        NumGreaterEq(Operations operation) {
+            super(operation.name());
+            this.generic = operation.action;
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!nums(o1, o2))
+                return generic.perform(o1, o2);
+            return Operand.boolItem(compareNums(o1, o2) >= 0);
+        }
+    }
+
+    private static final class NumLesser extends BinaryOperation {
+        NumLesser() {
+            super("LESSER");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!nums(o1, o2))
+                return Operations.LESSER.action.perform(o1, o2);
+            return Operand.boolItem(compareNums(o1, o2) < 0);
+        }
+    }
+
+    private static final class NumLesserEq extends BinaryOperation {
+        NumLesserEq() {
+            super("LESSER_EQ");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!nums(o1, o2))
+                return Operations.LESSER_EQ.action.perform(o1, o2);
+            return Operand.boolItem(compareNums(o1, o2) <= 0);
+        }
+    }
+
+    private static final class StrConcat extends BinaryOperation {
+        StrConcat() {
+            super("ADD");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!strings(o1, o2))
+                return Operations.ADD.action.perform(o1, o2);
+            return Operand.strItem((String) o1.getValue() + (String) o2.getValue());
+        }
+    }
+
+    private static final class StrGreaterEq extends BinaryOperation {
+        private final Operations.Performable generic;
+
+        StrGreaterEq(Operations operation) {
+            super(operation.name());
+            this.generic = operation.action;
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!strings(o1, o2))
+                return generic.perform(o1, o2);
+            return Operand.boolItem(compareStrings(o1, o2) >= 0);
+        }
+    }
+
+    private static final class StrLesser extends BinaryOperation {
+        StrLesser() {
+            super("LESSER");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!strings(o1, o2))
+                return Operations.LESSER.action.perform(o1, o2);
+            return Operand.boolItem(compareStrings(o1, o2) < 0);
+        }
+    }
+
+    private static final class StrLesserEq extends BinaryOperation {
+        StrLesserEq() {
+            super("LESSER_EQ");
+        }
+
+        @Override
+        public Operand perform(Operand o1, Operand o2) throws EvalException {
+            if (!strings(o1, o2))
+                return Operations.LESSER_EQ.action.perform(o1, o2);
+            return Operand.boolItem(compareStrings(o1, o2) <= 0);
+        }
+    }
+}
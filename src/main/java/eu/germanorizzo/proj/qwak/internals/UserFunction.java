@@ -0,0 +1,153 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A function registered by the user, called in the expressions as
+// name(arg1, arg2, ...). The types of the arguments and of the result can be
+// declared (null means any type): an argument of another type, except NULL,
+// makes the evaluation fail, as does a result of another type. Pure functions
+// are computed at compile time if their arguments are constants; they can
+// also be memoized, if asked for a memo size. The memo is shared by all the
+// threads and evaluations that call the function: it keeps up to that many
+// results by arguments, and is cleared when full.
+public final class UserFunction implements Operator {
+    private static final Map<String, UserFunction> REGISTRY = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final ValuedItem.Type returnType;
+    private final ValuedItem.Type[] argTypes;
+    private final boolean pure;
+    private final Operations.Performable implementation;
+    private final Operations.Performable action = this::call;
+    // the results by arguments, if memoized; it's cleared when full
+    private final Map<List<Object>, Operand> memo;
+    private final int memoSize;
+
+    public UserFunction(String name, ValuedItem.Type returnType, ValuedItem.Type[] argTypes, boolean pure,
+                        int memoSize, Operations.Performable implementation) {
+        if (argTypes.length == 0)
+            throw new IllegalArgumentException("A function must have at least one argument");
+        if (memoSize < 0)
+            throw new IllegalArgumentException("Invalid memo size: " + memoSize);
+        if (memoSize > 0 && !pure)
+            throw new IllegalArgumentException("Only pure functions can be memoized");
+        this.name = name;
+        this.returnType = returnType;
+        this.argTypes = argTypes.clone();
+        this.pure = pure;
+        this.implementation = implementation;
+        this.memo = memoSize > 0 ? new ConcurrentHashMap<>() : null;
+        this.memoSize = memoSize;
+    }
+
+    public static void register(UserFunction function) {
+        String name = function.name;
+        if (name.isEmpty() || !Character.isLetter(name.charAt(0)) && name.charAt(0) != '_')
+            throw new IllegalArgumentException("Invalid function name: " + name);
+        for (char c : name.toCharArray())
+            if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9') && c != '_')
+                throw new IllegalArgumentException("Invalid function name: " + name);
+        if (Operations.getOperation(name) != null || name.equalsIgnoreCase("true")
+                || name.equalsIgnoreCase("false") || name.equals("NULL"))
+            throw new IllegalArgumentException("Reserved name: " + name);
+        REGISTRY.put(name, function);
+    }
+
+    public static void unregister(String name) {
+        REGISTRY.remove(name);
+    }
+
+    public static UserFunction get(String name) {
+        return REGISTRY.get(name);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getArity() {
+        return argTypes.length;
+    }
+
+    @Override
+    public Operations.Performable getAction() {
+        return action;
+    }
+
+    @Override
+    public boolean isPure() {
+        return pure;
+    }
+
+    // null if not declared
+    public ValuedItem.Type getReturnType() {
+        return returnType;
+    }
+
+    // null for the arguments of any type
+    public ValuedItem.Type[] getArgTypes() {
+        return argTypes.clone();
+    }
+
+    private Operand call(Operand... operands) throws EvalException {
+        if (operands.length != argTypes.length)
+            throw new EvalException("Operands for " + name + " must be " + argTypes.length + ", are " + operands.length);
+        for (int i = 0; i < operands.length; i++)
+            if (argTypes[i] != null && operands[i].getType() != argTypes[i]
+                    && operands[i].getType() != ValuedItem.Type.NULL)
+                throw new EvalException("Argument " + (i + 1) + " of " + name + " must be " + argTypes[i]);
+
+        List<Object> key = null;
+        if (memo != null) {
+            Object[] values = new Object[operands.length * 2];
+            for (int i = 0; i < operands.length; i++) {
+                values[i * 2] = operands[i].getType();
+                values[i * 2 + 1] = operands[i].getValue();
+            }
+            key = Arrays.asList(values);
+            Operand ret = memo.get(key);
+            if (ret != null)
+                return ret;
+        }
+
+        Operand ret = implementation.perform(operands);
+        if (ret == null || (returnType != null && ret.getType() != returnType))
+            throw new EvalException("The result of " + name + " must be " + (returnType == null ? "an operand" : returnType));
+
+        if (memo != null) {
+            if (memo.size() >= memoSize)
+                memo.clear();
+            memo.put(key, ret);
+        }
+        return ret;
+    }
+}
@@ -24,8 +24,14 @@
  */
 package eu.germanorizzo.proj.qwak.internals;
 
+import java.math.BigDecimal;
+import java.util.Map;
+
 public final class Variable extends ValuedItem {
     private final String id;
+    // index of the variable among the distinct ones of its expression, -1 if
+    // not assigned yet
+    private int slot = -1;
 
     public Variable(ValuedItem.Type type, String id) {
         super(type);
@@ -35,4 +41,48 @@ public final class Variable extends ValuedItem {
     public String getId() {
         return id;
     }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    public char getPrefix() {
+        switch (getType()) {
+            case STRING:
+                return '$';
+            case NUM:
+                return '%';
+            default:
+                return '?';
+        }
+    }
+
+    public Operand resolve(Map<String, String> variables) throws EvalException {
+        if (variables == null)
+            return Operand.NULL;
+        return decode(variables.get(id));
+    }
+
+    // Converts the value of the variable, as a string, to an operand of its type
+    public Operand decode(String value) throws EvalException {
+        if (value == null)
+            return Operand.NULL;
+        switch (getType()) {
+            case STRING:
+                return Operand.strItem(value);
+            case NUM:
+                BigDecimal num = Operand.parseNum(value);
+                if (num == null)
+                    throw new EvalException(EvalException.Code.CONVERSION, "Variable " + getPrefix() + id + " is not a number");
+                return Operand.numItem(num);
+            case BOOL:
+                return Operand.boolItem("1".equals(value) || "true".equalsIgnoreCase(value));
+            default:
+                return Operand.NULL;
+        }
+    }
 }
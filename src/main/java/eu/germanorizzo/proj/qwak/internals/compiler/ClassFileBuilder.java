@@ -0,0 +1,367 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A minimal writer for class files, with just what's needed by
+// ProgramCompiler: a constant pool, fields and methods with a Code
+// attribute (and its StackMapTable, if there are branches).
+final class ClassFileBuilder {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int MAJOR_VERSION = 52;
+
+    private final Bytes pool = new Bytes();
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    private final int thisClass;
+    private final int superClass;
+
+    ClassFileBuilder(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    int utf8(String s) {
+        Integer idx = poolIndexes.get("U" + s);
+        if (idx != null)
+            return idx;
+        pool.u1(1);
+        pool.utf(s);
+        return register("U" + s, 1);
+    }
+
+    int classRef(String internalName) {
+        return ref("C" + internalName, 7, utf8(internalName), -1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int cls = classRef(owner);
+        int nat = ref("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+        return ref(tag + owner + "." + name + ":" + descriptor, tag, cls, nat);
+    }
+
+    private int ref(String key, int tag, int idx1, int idx2) {
+        Integer idx = poolIndexes.get(key);
+        if (idx != null)
+            return idx;
+        pool.u1(tag);
+        pool.u2(idx1);
+        if (idx2 >= 0)
+            pool.u2(idx2);
+        return register(key, 1);
+    }
+
+    private int register(String key, int slots) {
+        int ret = poolCount;
+        poolCount += slots;
+        poolIndexes.put(key, ret);
+        return ret;
+    }
+
+    void addField(int access, String name, String descriptor) {
+        Bytes b = new Bytes();
+        b.u2(access);
+        b.u2(utf8(name));
+        b.u2(utf8(descriptor));
+        b.u2(0);
+        fields.add(b.toByteArray());
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        byte[] bytecode = code.toByteArray();
+        byte[] stackMap = code.frames.isEmpty() ? null : stackMapTable(code);
+        Bytes b = new Bytes();
+        b.u2(access);
+        b.u2(utf8(name));
+        b.u2(utf8(descriptor));
+        b.u2(1);
+        b.u2(utf8("Code"));
+        b.u4(12 + bytecode.length + (stackMap == null ? 0 : 6 + stackMap.length));
+        b.u2(code.maxStack);
+        b.u2(code.maxLocals);
+        b.u4(bytecode.length);
+        b.bytes(bytecode);
+        b.u2(0); // exception table
+        if (stackMap == null)
+            b.u2(0);
+        else {
+            b.u2(1);
+            b.u2(utf8("StackMapTable"));
+            b.u4(stackMap.length);
+            b.bytes(stackMap);
+        }
+        methods.add(b.toByteArray());
+    }
+
+    // All the frames are full frames, with the same locals (all of them
+    // objects) and an empty stack.
+    private byte[] stackMapTable(Code code) {
+        Bytes b = new Bytes();
+        b.u2(code.frames.size());
+        int previous = -1;
+        for (int offset : code.frames) {
+            b.u1(255);
+            b.u2(offset - previous - 1);
+            b.u2(code.frameLocals.length);
+            for (String local : code.frameLocals) {
+                b.u1(7);
+                b.u2(classRef(local));
+            }
+            b.u2(0);
+            previous = offset;
+        }
+        return b.toByteArray();
+    }
+
+    byte[] toByteArray() {
+        Bytes b = new Bytes();
+        b.u4(0xCAFEBABE);
+        b.u2(0);
+        b.u2(MAJOR_VERSION);
+        b.u2(poolCount);
+        b.bytes(pool.toByteArray());
+        b.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        b.u2(thisClass);
+        b.u2(superClass);
+        b.u2(0); // interfaces
+        b.u2(fields.size());
+        for (byte[] f : fields)
+            b.bytes(f);
+        b.u2(methods.size());
+        for (byte[] m : methods)
+            b.bytes(m);
+        b.u2(0); // attributes
+        return b.toByteArray();
+    }
+
+    static final class Code {
+        static final int ACONST_NULL = 0x01;
+        static final int AALOAD = 0x32;
+        static final int AASTORE = 0x53;
+        static final int DUP = 0x59;
+        static final int IF_ACMPEQ = 0xa5;
+        static final int ARETURN = 0xb0;
+        static final int RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2;
+        static final int GETFIELD = 0xb4;
+        static final int PUTFIELD = 0xb5;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKEINTERFACE = 0xb9;
+        static final int ANEWARRAY = 0xbd;
+        static final int CHECKCAST = 0xc0;
+
+        private static final int ALOAD = 0x19;
+        private static final int ALOAD_0 = 0x2a;
+        private static final int ASTORE = 0x3a;
+        private static final int ASTORE_0 = 0x4b;
+        private static final int ICONST_0 = 0x03;
+        private static final int BIPUSH = 0x10;
+        private static final int SIPUSH = 0x11;
+        private static final int WIDE = 0xc4;
+
+        private byte[] code = new byte[256];
+        private int length;
+        int maxStack;
+        int maxLocals;
+
+        // offsets of the branch targets, and the (internal names of the)
+        // types of the locals there
+        private final List<Integer> frames = new ArrayList<>();
+        String[] frameLocals;
+
+        static final class Label {
+            private int offset = -1;
+            private final List<Integer> branches = new ArrayList<>();
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        // opcodes with a constant pool index as argument
+        void op(int opcode, int index) {
+            u1(opcode);
+            u2(index);
+        }
+
+        void invokeInterface(int index, int argsSize) {
+            u1(INVOKEINTERFACE);
+            u2(index);
+            u1(argsSize + 1);
+            u1(0);
+        }
+
+        void branch(int opcode, Label label) {
+            label.branches.add(length);
+            u1(opcode);
+            u2(0);
+        }
+
+        // Binds the label to the current position, that must be reached
+        // with an empty stack and locals as in frameLocals.
+        void mark(Label label) {
+            label.offset = length;
+            for (int branch : label.branches) {
+                int delta = length - branch;
+                code[branch + 1] = (byte) (delta >> 8);
+                code[branch + 2] = (byte) delta;
+            }
+            if (frames.isEmpty() || frames.get(frames.size() - 1) != length)
+                frames.add(length);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5)
+                u1(ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else
+                throw new IllegalArgumentException("Constant too big: " + value);
+        }
+
+        void aload(int local) {
+            local(ALOAD, ALOAD_0, local);
+        }
+
+        void astore(int local) {
+            local(ASTORE, ASTORE_0, local);
+        }
+
+        private void local(int opcode, int shortOpcode, int local) {
+            if (local <= 3)
+                u1(shortOpcode + local);
+            else if (local <= 255) {
+                u1(opcode);
+                u1(local);
+            } else {
+                u1(WIDE);
+                u1(opcode);
+                u2(local);
+            }
+        }
+
+        private void u1(int v) {
+            if (length == code.length)
+                code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte) v;
+        }
+
+        private void u2(int v) {
+            u1(v >> 8);
+            u1(v);
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(code, length);
+        }
+    }
+
+    private static final class Bytes {
+        private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(baos);
+
+        void u1(int v) {
+            try {
+                out.writeByte(v);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void u2(int v) {
+            try {
+                out.writeShort(v);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void u4(int v) {
+            try {
+                out.writeInt(v);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void utf(String s) {
+            try {
+                out.writeUTF(s);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void bytes(byte[] b) {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        byte[] toByteArray() {
+            return baos.toByteArray();
+        }
+    }
+}
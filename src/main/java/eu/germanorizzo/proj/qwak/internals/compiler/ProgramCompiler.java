@@ -0,0 +1,213 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals.compiler;
+
+import eu.germanorizzo.proj.qwak.internals.*;
+import eu.germanorizzo.proj.qwak.internals.compiler.ClassFileBuilder.Code;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static eu.germanorizzo.proj.qwak.internals.compiler.ClassFileBuilder.Code.*;
+
+// Translates the RPN program of an Evaluator to a hidden class with a single
+// method. Every stack position becomes a local variable, and every operation
+// is invoked on a field with its concrete type, so each call site is
+// monomorphic and can be inlined by HotSpot. Jumps become branches on the
+// local at the top of the stack.
+public final class ProgramCompiler {
+    // HotSpot doesn't JIT-compile methods with more bytecode than this, so
+    // it's pointless to generate them (see -XX:-DontCompileHugeMethods)
+    private static final int HUGE_METHOD_LIMIT = 8000;
+
+    private static final String CLASS_NAME = "eu/germanorizzo/proj/qwak/internals/compiler/Program";
+    private static final String SUPER_NAME = internalName(CompiledProgram.class);
+    private static final String OPERAND = internalName(Operand.class);
+    private static final String VARIABLE = internalName(Variable.class);
+    private static final String OPERAND_DESC = "L" + OPERAND + ";";
+    private static final String VARIABLE_DESC = "L" + VARIABLE + ";";
+    private static final String RESOLVER = internalName(VariableResolver.class);
+    private static final String RESOLVER_DESC = "L" + RESOLVER + ";";
+    private static final String PERFORMABLE = internalName(Operations.Performable.class);
+    // by number of operands, the others are passed as an array
+    private static final String[] PERFORM_DESC = {null, "(" + OPERAND_DESC + ")" + OPERAND_DESC,
+            "(" + OPERAND_DESC + OPERAND_DESC + ")" + OPERAND_DESC,
+            "(" + OPERAND_DESC + OPERAND_DESC + OPERAND_DESC + ")" + OPERAND_DESC};
+    private static final String PERFORM_ARRAY_DESC = "([" + OPERAND_DESC + ")" + OPERAND_DESC;
+    private static final String RESOLVE_DESC = "(" + VARIABLE_DESC + ")" + OPERAND_DESC;
+    private static final String RUN_DESC = "(" + RESOLVER_DESC + ")" + OPERAND_DESC;
+
+    private static final int THIS = 0;
+    private static final int VARIABLES = 1;
+    private static final int FIRST_STACK_LOCAL = 2;
+
+    private ProgramCompiler() {
+    }
+
+    private static String internalName(Class<?> cls) {
+        return cls.getName().replace('.', '/');
+    }
+
+    // Returns null if the program can't be compiled (it's too big)
+    public static CompiledProgram compile(Item[] items) {
+        ClassFileBuilder cf = new ClassFileBuilder(CLASS_NAME, SUPER_NAME);
+        List<Object> constants = new ArrayList<>();
+        List<String> descriptors = new ArrayList<>();
+        Map<Operations.Performable, Integer> actions = new IdentityHashMap<>();
+
+        int maxDepth = Optimizer.maxDepth(items);
+        // the slots of the common subexpressions follow the stack
+        int firstSlotLocal = FIRST_STACK_LOCAL + maxDepth;
+        int maxLocals = firstSlotLocal + CommonSubexpressions.slots(items);
+        Code run = new Code();
+        run.frameLocals = new String[maxLocals];
+        run.frameLocals[THIS] = CLASS_NAME;
+        run.frameLocals[VARIABLES] = RESOLVER;
+        // all the locals are initialized, so they're the same in all frames
+        for (int i = 0; i < maxLocals - FIRST_STACK_LOCAL; i++) {
+            run.frameLocals[FIRST_STACK_LOCAL + i] = OPERAND;
+            run.op(ACONST_NULL);
+            run.astore(FIRST_STACK_LOCAL + i);
+        }
+
+        Map<Integer, Code.Label> labels = new HashMap<>();
+        int depth = 0;
+        for (int pc = 0; pc < items.length; pc++) {
+            Item item = items[pc];
+            if (labels.containsKey(pc))
+                run.mark(labels.get(pc));
+            if (item instanceof Jump) {
+                Jump jump = (Jump) item;
+                Code.Label label = labels.computeIfAbsent(jump.getTarget(), t -> new Code.Label());
+                run.aload(FIRST_STACK_LOCAL + depth - 1);
+                run.op(GETSTATIC, cf.fieldRef(OPERAND, jump.getWhen() == Operand.TRUE ? "TRUE" : "FALSE", OPERAND_DESC));
+                run.branch(IF_ACMPEQ, label);
+            } else if (item instanceof Store) {
+                run.aload(FIRST_STACK_LOCAL + depth - 1);
+                run.astore(firstSlotLocal + ((Store) item).getSlot());
+            } else if (item instanceof Load) {
+                run.aload(firstSlotLocal + ((Load) item).getSlot());
+                run.astore(FIRST_STACK_LOCAL + depth);
+                depth++;
+            } else if (item instanceof Operand || item instanceof Variable) {
+                int field = constants.size();
+                constants.add(item);
+                descriptors.add(item instanceof Operand ? OPERAND_DESC : VARIABLE_DESC);
+                if (item instanceof Variable)
+                    run.aload(VARIABLES);
+                run.aload(THIS);
+                run.op(GETFIELD, cf.fieldRef(CLASS_NAME, "f" + field, descriptors.get(field)));
+                if (item instanceof Variable)
+                    run.invokeInterface(cf.interfaceMethodRef(RESOLVER, "resolve", RESOLVE_DESC), 1);
+                run.astore(FIRST_STACK_LOCAL + depth);
+                depth++;
+            } else {
+                Operator op = (Operator) item;
+                Operations.Performable action = op.getAction();
+                // built-in operations are called on their concrete class, user
+                // functions (often lambdas) and the specialized operations (private
+                // classes) through the interface
+                boolean builtIn = op instanceof Operations;
+                String owner = builtIn ? internalName(action.getClass()) : PERFORMABLE;
+                Integer field = actions.get(action);
+                if (field == null) {
+                    field = constants.size();
+                    actions.put(action, field);
+                    constants.add(action);
+                    descriptors.add("L" + owner + ";");
+                }
+                int opNum = op.getArity();
+                run.aload(THIS);
+                run.op(GETFIELD, cf.fieldRef(CLASS_NAME, "f" + field, descriptors.get(field)));
+                if (opNum < PERFORM_DESC.length) {
+                    for (int i = 0; i < opNum; i++)
+                        run.aload(FIRST_STACK_LOCAL + depth - opNum + i);
+                    if (builtIn)
+                        run.op(INVOKEVIRTUAL, cf.methodRef(owner, "perform", PERFORM_DESC[opNum]));
+                    else
+                        run.invokeInterface(cf.interfaceMethodRef(owner, "perform", PERFORM_DESC[opNum]), opNum);
+                } else {
+                    run.pushInt(opNum);
+                    run.op(ANEWARRAY, cf.classRef(OPERAND));
+                    for (int i = 0; i < opNum; i++) {
+                        run.op(DUP);
+                        run.pushInt(i);
+                        run.aload(FIRST_STACK_LOCAL + depth - opNum + i);
+                        run.op(AASTORE);
+                    }
+                    if (builtIn)
+                        run.op(INVOKEVIRTUAL, cf.methodRef(owner, "perform", PERFORM_ARRAY_DESC));
+                    else
+                        run.invokeInterface(cf.interfaceMethodRef(owner, "perform", PERFORM_ARRAY_DESC), 1);
+                }
+                depth -= opNum;
+                run.astore(FIRST_STACK_LOCAL + depth);
+                depth++;
+            }
+            if (run.length() > HUGE_METHOD_LIMIT)
+                return null;
+        }
+        if (labels.containsKey(items.length))
+            run.mark(labels.get(items.length));
+        run.aload(FIRST_STACK_LOCAL);
+        run.op(ARETURN);
+        run.maxStack = 5;
+        run.maxLocals = maxLocals;
+
+        Code init = new Code();
+        init.aload(THIS);
+        init.op(INVOKESPECIAL, cf.methodRef(SUPER_NAME, "<init>", "()V"));
+        for (int i = 0; i < constants.size(); i++) {
+            String descriptor = descriptors.get(i);
+            cf.addField(ClassFileBuilder.ACC_PRIVATE | ClassFileBuilder.ACC_FINAL, "f" + i, descriptor);
+            init.aload(THIS);
+            init.aload(1);
+            init.pushInt(i);
+            init.op(AALOAD);
+            init.op(CHECKCAST, cf.classRef(descriptor.substring(1, descriptor.length() - 1)));
+            init.op(PUTFIELD, cf.fieldRef(CLASS_NAME, "f" + i, descriptor));
+        }
+        init.op(RETURN);
+        init.maxStack = 3;
+        init.maxLocals = 2;
+
+        cf.addMethod(ClassFileBuilder.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", init);
+        cf.addMethod(ClassFileBuilder.ACC_PUBLIC, "run", RUN_DESC, run);
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cf.toByteArray(), true);
+            return (CompiledProgram) lookup
+                    .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Object[].class))
+                    .invoke(constants.toArray());
+        } catch (Throwable t) {
+            throw new IllegalStateException("Unable to define the compiled program", t);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals.jfr;
+
+import jdk.jfr.*;
+
+// Only the evaluations slower than the threshold are recorded, as there can
+// be millions of them per second
+@Name("qwak.Evaluate")
+@Label("Qwak Evaluation")
+@Category("Qwak")
+@Description("Evaluation of an expression")
+@StackTrace(false)
+@Threshold("1 ms")
+public final class EvaluateEvent extends Event {
+    @Label("Expression Id")
+    public long expressionId;
+
+    @Label("Result Type")
+    public String resultType;
+}
@@ -26,17 +26,16 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 
 import java.math.BigDecimal;
 
-public class Abs implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 1)
-            throw new EvalException("Operands for ABS must be 1, are " + operands.length);
-        Operand o1 = operands[0];
+public class Abs extends UnaryOperation {
+    public Abs() {
+        super("ABS");
+    }
 
+    @Override
+    public Operand perform(Operand o1) throws EvalException {
         switch (o1.getType()) {
             case STRING:
                 throw new EvalException("Cannot ABS on strings");
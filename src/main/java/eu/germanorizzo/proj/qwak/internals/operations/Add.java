@@ -26,18 +26,16 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 
 import java.math.BigDecimal;
 
-public class Add implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 2)
-            throw new EvalException("Operands for ADD must be 2, are " + operands.length);
-        Operand o1 = operands[0];
-        Operand o2 = operands[1];
+public class Add extends BinaryOperation {
+    public Add() {
+        super("ADD");
+    }
 
+    @Override
+    public Operand perform(Operand o1, Operand o2) throws EvalException {
         switch (o1.getType()) {
             case STRING:
                 switch (o2.getType()) {
@@ -0,0 +1,47 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2008 Aton S.p.A. (http://www.aton.eu).
+ * Use is subject to license terms.
+ */
+package eu.germanorizzo.proj.qwak.internals.operations;
+
+import eu.germanorizzo.proj.qwak.internals.EvalException;
+import eu.germanorizzo.proj.qwak.internals.Operand;
+import eu.germanorizzo.proj.qwak.internals.Operations;
+
+public abstract class BinaryOperation implements Operations.Performable {
+    private final String name;
+
+    protected BinaryOperation(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public final Operand perform(Operand... operands) throws EvalException {
+        if (operands.length != 2)
+            throw new EvalException("Operands for " + name + " must be 2, are " + operands.length);
+        return perform(operands[0], operands[1]);
+    }
+
+    @Override
+    public abstract Operand perform(Operand o1, Operand o2) throws EvalException;
+}
@@ -26,17 +26,15 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 import eu.germanorizzo.proj.qwak.internals.ValuedItem;
 
-public class Contains implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 2)
-            throw new EvalException("Operands for CONTAINS must be 2, are " + operands.length);
-        Operand o1 = operands[0];
-        Operand o2 = operands[1];
+public class Contains extends BinaryOperation {
+    public Contains() {
+        super("CONTAINS");
+    }
 
+    @Override
+    public Operand perform(Operand o1, Operand o2) throws EvalException {
         if (!(o1.getType() == ValuedItem.Type.STRING || o1.getType() == ValuedItem.Type.NULL) || o2.getType() != ValuedItem.Type.STRING)
             throw new EvalException("Operands for CONTAINS must be [String|Null] and String");
 
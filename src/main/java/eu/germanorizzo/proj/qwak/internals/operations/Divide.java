@@ -26,18 +26,16 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 
 import java.math.BigDecimal;
 
-public class Divide implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 2)
-            throw new EvalException("Operands for DIVIDE must be 2, are " + operands.length);
-        Operand o1 = operands[0];
-        Operand o2 = operands[1];
+public class Divide extends BinaryOperation {
+    public Divide() {
+        super("DIVIDE");
+    }
 
+    @Override
+    public Operand perform(Operand o1, Operand o2) throws EvalException {
         switch (o1.getType()) {
             case STRING:
                 throw new EvalException("Cannot DIVIDE on strings");
@@ -46,7 +44,7 @@ public class Divide implements Operations.Performable {
                     case STRING:
                         throw new EvalException("Cannot DIVIDE on strings");
                     case NUM:
-                        return Operand.numItem(((BigDecimal) o1.getValue()).divide((BigDecimal) o2.getValue()));
+                        return Operand.numItem(divide((BigDecimal) o1.getValue(), (BigDecimal) o2.getValue()));
                     case BOOL:
                         throw new EvalException("Cannot DIVIDE on booleans");
                     case NULL:
@@ -60,4 +58,16 @@ public class Divide implements Operations.Performable {
 
         throw new EvalException("Invalid parameters combination for DIVIDE");
     }
+
+    // The failures are checked before BigDecimal throws its exceptions, slow
+    // to create, where possible
+    public static BigDecimal divide(BigDecimal dividend, BigDecimal divisor) throws EvalException {
+        if (divisor.signum() == 0)
+            throw new EvalException(EvalException.Code.ARITHMETIC, "Division by zero");
+        try {
+            return dividend.divide(divisor);
+        } catch (ArithmeticException e) {
+            throw new EvalException(EvalException.Code.ARITHMETIC, "The result of DIVIDE has no exact decimal representation");
+        }
+    }
 }
@@ -26,17 +26,15 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 import eu.germanorizzo.proj.qwak.internals.ValuedItem;
 
-public class EndsWith implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 2)
-            throw new EvalException("Operands for ENDSWITH must be 2, are " + operands.length);
-        Operand o1 = operands[0];
-        Operand o2 = operands[1];
+public class EndsWith extends BinaryOperation {
+    public EndsWith() {
+        super("ENDSWITH");
+    }
 
+    @Override
+    public Operand perform(Operand o1, Operand o2) throws EvalException {
         if (!(o1.getType() == ValuedItem.Type.STRING || o1.getType() == ValuedItem.Type.NULL) || o2.getType() != ValuedItem.Type.STRING)
             throw new EvalException("Operands for ENDSWITH must be [String|Null] and String");
 
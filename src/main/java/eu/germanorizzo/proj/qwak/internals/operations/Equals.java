@@ -26,14 +26,14 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 
-public class Equals implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 2)
-            throw new EvalException("Operands for EQUALS must be 2, are " + operands.length);
+public class Equals extends BinaryOperation {
+    public Equals() {
+        super("EQUALS");
+    }
 
-        return Operand.boolItem(operands[0].equals(operands[1]));
+    @Override
+    public Operand perform(Operand o1, Operand o2) throws EvalException {
+        return Operand.boolItem(o1.equals(o2));
     }
 }
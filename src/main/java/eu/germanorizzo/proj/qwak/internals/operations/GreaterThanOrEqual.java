@@ -26,19 +26,17 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 import eu.germanorizzo.proj.qwak.internals.ValuedItem;
 
 import java.math.BigDecimal;
 
-public class GreaterThanOrEqual implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 2)
-            throw new EvalException("Operands for GREATER_EQ must be 2, are " + operands.length);
-        Operand o1 = operands[0];
-        Operand o2 = operands[1];
+public class GreaterThanOrEqual extends BinaryOperation {
+    public GreaterThanOrEqual() {
+        super("GREATER_EQ");
+    }
 
+    @Override
+    public Operand perform(Operand o1, Operand o2) throws EvalException {
         if (o1.getType() != o2.getType() && (o1.getType() == ValuedItem.Type.NULL || o2.getType() == ValuedItem.Type.NULL))
             throw new EvalException("Operands for GREATER_EQ must be of the same type or NULL");
 
@@ -26,26 +26,23 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 
-import java.math.BigDecimal;
+public class Length extends UnaryOperation {
+    public Length() {
+        super("LENGTH");
+    }
 
-public class Length implements Operations.Performable {
     @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 1)
-            throw new EvalException("Operands for LENGTH must be 1, are " + operands.length);
-        Operand o1 = operands[0];
-
+    public Operand perform(Operand o1) throws EvalException {
         switch (o1.getType()) {
             case STRING:
-                return Operand.numItem(new BigDecimal(((String) o1.getValue()).length()));
+                return Operand.numItem(((String) o1.getValue()).length());
             case NUM:
                 throw new EvalException("Cannot LENGTH on numbers");
             case BOOL:
                 throw new EvalException("Cannot LENGTH on booleans");
             case NULL:
-                return Operand.numItem(new BigDecimal(-1));
+                return Operand.numItem(-1);
         }
 
         throw new EvalException("Invalid parameters combination for LENGTH");
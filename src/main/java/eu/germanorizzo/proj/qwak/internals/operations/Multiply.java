@@ -26,19 +26,17 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 import eu.germanorizzo.proj.qwak.internals.ValuedItem;
 
 import java.math.BigDecimal;
 
-public class Multiply implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 2)
-            throw new EvalException("Operands for MULTIPLY must be 2, are " + operands.length);
-        Operand o1 = operands[0];
-        Operand o2 = operands[1];
+public class Multiply extends BinaryOperation {
+    public Multiply() {
+        super("MULTIPLY");
+    }
 
+    @Override
+    public Operand perform(Operand o1, Operand o2) throws EvalException {
         switch (o1.getType()) {
             case STRING:
                 if (o2.getType() == ValuedItem.Type.NUM) {
@@ -26,16 +26,15 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 import eu.germanorizzo.proj.qwak.internals.ValuedItem;
 
-public class Not implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 1)
-            throw new EvalException("Operands for NOT must be 1, are " + operands.length);
-        Operand o1 = operands[0];
+public class Not extends UnaryOperation {
+    public Not() {
+        super("NOT");
+    }
 
+    @Override
+    public Operand perform(Operand o1) throws EvalException {
         if (o1.getType() != ValuedItem.Type.BOOL)
             throw new EvalException("Operand for NOT must be Boolean");
 
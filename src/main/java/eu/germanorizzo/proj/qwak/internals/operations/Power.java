@@ -26,18 +26,16 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 
 import java.math.BigDecimal;
 
-public class Power implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 2)
-            throw new EvalException("Operands for POWER must be 2, are " + operands.length);
-        Operand o1 = operands[0];
-        Operand o2 = operands[1];
+public class Power extends BinaryOperation {
+    public Power() {
+        super("POWER");
+    }
 
+    @Override
+    public Operand perform(Operand o1, Operand o2) throws EvalException {
         switch (o1.getType()) {
             case STRING:
                 throw new EvalException("Cannot POWER on strings");
@@ -47,6 +45,10 @@ public class Power implements Operations.Performable {
                         throw new EvalException("Cannot POWER on strings");
                     case NUM:
                         int v2 = o2.coalesceToInt("Second argument for POWER must be an integer");
+                        // the range accepted by BigDecimal.pow()
+                        if (v2 < 0 || v2 > 999999999)
+                            throw new EvalException(EvalException.Code.ARITHMETIC,
+                                    "Second argument for POWER must be a non-negative integer");
                         return Operand.numItem(((BigDecimal) o1.getValue()).pow(v2));
                     case BOOL:
                         throw new EvalException("Cannot POWER on booleans");
@@ -26,18 +26,16 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 
 import java.math.BigDecimal;
 
-public class Remainder implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 2)
-            throw new EvalException("Operands for REMAINDER must be 2, are " + operands.length);
-        Operand o1 = operands[0];
-        Operand o2 = operands[1];
+public class Remainder extends BinaryOperation {
+    public Remainder() {
+        super("REMAINDER");
+    }
 
+    @Override
+    public Operand perform(Operand o1, Operand o2) throws EvalException {
         switch (o1.getType()) {
             case STRING:
                 throw new EvalException("Cannot REMAINDER on strings");
@@ -46,7 +44,7 @@ public class Remainder implements Operations.Performable {
                     case STRING:
                         throw new EvalException("Cannot REMAINDER on strings");
                     case NUM: {
-                        return Operand.numItem(((BigDecimal) o1.getValue()).remainder((BigDecimal) o2.getValue()));
+                        return Operand.numItem(remainder((BigDecimal) o1.getValue(), (BigDecimal) o2.getValue()));
                     }
                     case BOOL:
                         throw new EvalException("Cannot REMAINDER on booleans");
@@ -61,4 +59,10 @@ public class Remainder implements Operations.Performable {
 
         throw new EvalException("Invalid parameters combination for REMAINDER");
     }
+
+    public static BigDecimal remainder(BigDecimal dividend, BigDecimal divisor) throws EvalException {
+        if (divisor.signum() == 0)
+            throw new EvalException(EvalException.Code.ARITHMETIC, "Division by zero");
+        return dividend.remainder(divisor);
+    }
 }
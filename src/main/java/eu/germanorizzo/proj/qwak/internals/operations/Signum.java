@@ -26,22 +26,21 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 
 import java.math.BigDecimal;
 
-public class Signum implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 1)
-            throw new EvalException("Operands for SIGNUM must be 1, are " + operands.length);
-        Operand o1 = operands[0];
+public class Signum extends UnaryOperation {
+    public Signum() {
+        super("SIGNUM");
+    }
 
+    @Override
+    public Operand perform(Operand o1) throws EvalException {
         switch (o1.getType()) {
             case STRING:
                 throw new EvalException("Cannot SIGNUM on strings");
             case NUM:
-                return Operand.numItem(new BigDecimal((((BigDecimal) o1.getValue()).signum())));
+                return Operand.numItem(((BigDecimal) o1.getValue()).signum());
             case BOOL:
                 throw new EvalException("Cannot SIGNUM on booleans");
             case NULL:
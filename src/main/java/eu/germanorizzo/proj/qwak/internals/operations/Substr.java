@@ -26,18 +26,15 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 import eu.germanorizzo.proj.qwak.internals.ValuedItem;
 
-public class Substr implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 3)
-            throw new EvalException("Operands for SUBSTR must be 3, are " + operands.length);
-        Operand o1 = operands[0];
-        Operand o2 = operands[1];
-        Operand o3 = operands[2];
+public class Substr extends TernaryOperation {
+    public Substr() {
+        super("SUBSTR");
+    }
 
+    @Override
+    public Operand perform(Operand o1, Operand o2, Operand o3) throws EvalException {
         if (!(o1.getType() == ValuedItem.Type.STRING || o1.getType() == ValuedItem.Type.NULL) || o2.getType() != ValuedItem.Type.NUM || o3.getType() != ValuedItem.Type.NUM)
             throw new EvalException("Operands for SUBSTR must be [String|Null], Num and Num");
 
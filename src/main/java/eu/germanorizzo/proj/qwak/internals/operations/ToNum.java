@@ -26,28 +26,29 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 
 import java.math.BigDecimal;
 
-public class ToNum implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 1)
-            throw new EvalException("Operands for TO_NUM must be 1, are " + operands.length);
-        Operand o1 = operands[0];
+public class ToNum extends UnaryOperation {
+    public ToNum() {
+        super("TO_NUM");
+    }
 
+    @Override
+    public Operand perform(Operand o1) throws EvalException {
         switch (o1.getType()) {
             case STRING:
-                String s1 = (String) o1.getValue();
-                return Operand.numItem(new BigDecimal(s1));
+                BigDecimal n1 = Operand.parseNum((String) o1.getValue());
+                if (n1 == null)
+                    throw new EvalException(EvalException.Code.CONVERSION, "Operand for TO_NUM is not a number");
+                return Operand.numItem(n1);
             case NUM:
                 return o1;
             case BOOL:
                 Boolean b1 = (Boolean) o1.getValue();
-                return b1.booleanValue() ? Operand.numItem(BigDecimal.ONE) : Operand.numItem(BigDecimal.ZERO);
+                return Operand.numItem(b1.booleanValue() ? 1 : 0);
             case NULL:
-                return Operand.numItem(BigDecimal.ZERO);
+                return Operand.numItem(0);
         }
 
         throw new EvalException("Invalid parameters combination for TO_NUM");
@@ -26,15 +26,14 @@ package eu.germanorizzo.proj.qwak.internals.operations;
 
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
-import eu.germanorizzo.proj.qwak.internals.Operations;
 
-public class Trim implements Operations.Performable {
-    @Override
-    public Operand perform(Operand... operands) throws EvalException {
-        if (operands.length != 1)
-            throw new EvalException("Operands for TRIM must be 1, are " + operands.length);
-        Operand o1 = operands[0];
+public class Trim extends UnaryOperation {
+    public Trim() {
+        super("TRIM");
+    }
 
+    @Override
+    public Operand perform(Operand o1) throws EvalException {
         switch (o1.getType()) {
             case STRING:
                 return Operand.strItem((((String) o1.getValue()).trim()));
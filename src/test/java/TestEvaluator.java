@@ -1,16 +1,47 @@
+import eu.germanorizzo.proj.qwak.Bindings;
+import eu.germanorizzo.proj.qwak.ErrorPolicy;
+import eu.germanorizzo.proj.qwak.EvalResult;
+import eu.germanorizzo.proj.qwak.EvaluationFailure;
+import eu.germanorizzo.proj.qwak.EvaluationMetrics;
 import eu.germanorizzo.proj.qwak.Evaluator;
+import eu.germanorizzo.proj.qwak.Functions;
+import eu.germanorizzo.proj.qwak.LatencyHistogram;
+import eu.germanorizzo.proj.qwak.OperatorProfile;
+import eu.germanorizzo.proj.qwak.PreparedBindings;
+import eu.germanorizzo.proj.qwak.RuleIndex;
+import eu.germanorizzo.proj.qwak.RuleSet;
+import eu.germanorizzo.proj.qwak.UncheckedEvalException;
+import eu.germanorizzo.proj.qwak.VariableSource;
 import eu.germanorizzo.proj.qwak.internals.EvalException;
 import eu.germanorizzo.proj.qwak.internals.Operand;
+import eu.germanorizzo.proj.qwak.internals.ValuedItem;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.ParseException;
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
@@ -35,7 +66,13 @@ public class TestEvaluator {
 
     private Operand eval(String expression) throws ParseException, EvalException {
         Evaluator eval = Evaluator.compile(expression);
-        return eval.evaluate(variables);
+        Operand ret = eval.evaluate(variables);
+        assertEquals(ret, Evaluator.compile(expression, Evaluator.Option.BYTECODE).evaluate(variables));
+
+        Bindings bindings = eval.newBindings();
+        variables.forEach(bindings::set);
+        assertEquals(ret, eval.evaluate(bindings));
+        return ret;
     }
 
     @Test
@@ -152,19 +189,1185 @@ public class TestEvaluator {
         testFalseness("~?b || ?a");
     }
 
+    @Test
+    public void testShortCircuit() throws ParseException, EvalException {
+        // the right operand is not evaluated, so it doesn't fail
+        testFalseness("false && (1 && 2)");
+        testFalseness("?a && substr($i, 0.5, 1) == \"s\"");
+        testTruth("true || (1 && 2)");
+        testTruth("~?a || (1 || 2)");
+        testTruth("(false && (1 && 2)) || (true || (1 && 2))");
+        testTruth("~(false && (1 && 2) || ?a && 1) && (?b || 1)");
+        testTruth("(?b && ?b) && (?b && (?a || ?b))");
+
+        testFailEvaluation("true && (1 && 2)");
+        testFailEvaluation("false || (1 && 2)");
+    }
+
+    @Test
+    public void testConstantFolding() throws ParseException, EvalException {
+        assertEquals(eval("pow(2, 10) * 2"), eval("2048"));
+        testTruth("pow(2, 10) * %b == 1024");
+        testTruth("toNum(\"3\") + 1 == 4");
+        testTruth("len(trim(\"  abc \")) + %c == 5");
+        testTruth("%c * 1 + 0 == %c");
+        testTruth("0 + 1 * %c / 1 - 0 == 2");
+        testTruth("true && (%a == 0) && true");
+        testFalseness("false || (%a == 1) || false");
+        testTruth("true || (1 && 2)");
+
+        // NULL + 0 is 0, and NULL * 1 fails, so the identities don't apply
+        testTruth("%e + 0 == 0");
+        testFailEvaluation("%e * 1");
+        testFailEvaluation("?e && true");
+        // constant operations that fail, fail at evaluation time
+        testFailEvaluation("pow(2, 0.5)");
+        testFailEvaluation("1 && 2");
+    }
+
+    @Test
+    public void testBytecodeFallback() throws ParseException, EvalException {
+        // too big to be JIT-compiled, so it's interpreted
+        StringBuilder sb = new StringBuilder("0");
+        for (int i = 0; i < 2000; i++)
+            sb.append(" + %b");
+        Evaluator eval = Evaluator.compile(sb.toString(), Evaluator.Option.BYTECODE);
+        assertEquals(eval.evaluate(variables), Operand.numItem(new BigDecimal(2000)));
+    }
+
+    @Test
+    public void testSlots() throws ParseException, EvalException {
+        Evaluator eval = Evaluator.compile("%x + %y > %x * 2 && $x != \"\"");
+        assertEquals(Arrays.asList("%x", "%y", "$x"), eval.variableSlots());
+
+        Bindings bindings = eval.newBindings();
+        bindings.set(0, "1").set(1, "2").set(2, "a");
+        assertEquals(Operand.TRUE, eval.evaluate(bindings));
+        bindings.set("x", "3");
+        assertEquals(Operand.FALSE, eval.evaluate(bindings));
+
+        Evaluator sum = Evaluator.compile("%x + %y");
+        Bindings sumBindings = sum.newBindings().set(1, "2");
+        assertEquals(Operand.numItem(new BigDecimal(2)), sum.evaluate(sumBindings));
+        assertEquals(Operand.numItem(new BigDecimal(3)), sum.evaluate(sumBindings.set(0, "1")));
+        sumBindings.clear();
+        assertEquals(Operand.numItem(BigDecimal.ONE), sum.evaluate(sumBindings.set(0, "1")));
+
+        try {
+            Evaluator.compile("$x").evaluate(bindings);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testTypedVariables() throws ParseException, EvalException {
+        Map<String, Object> typed = new HashMap<>();
+        typed.put("long", 3L);
+        typed.put("double", 0.5);
+        typed.put("decimal", new BigDecimal("1.50"));
+        typed.put("flag", true);
+        typed.put("string", "abc");
+        typed.put("numString", "2");
+
+        Evaluator eval = Evaluator.compile("%long * %double + %decimal == 3 && ?flag && $string + $long == \"abc3\" && %numString == 2");
+        assertEquals(Operand.TRUE, eval.evaluate(VariableSource.of(typed)));
+        assertEquals(Operand.NULL, Evaluator.compile("%missing").evaluate(VariableSource.of(typed)));
+
+        // values that aren't finite numbers of a known class fail the evaluation
+        Map<String, Object> odd = new HashMap<>();
+        odd.put("nan", Double.NaN);
+        odd.put("inf", Float.POSITIVE_INFINITY);
+        odd.put("atomic", new AtomicInteger(1));
+        odd.put("one", 1);
+        odd.put("zero", 0.0);
+        for (String expression : new String[]{"%nan + 1", "%inf + 1", "%atomic + 1", "?atomic", "?nan"})
+            for (EvalResult result : new EvalResult[]{Evaluator.compile(expression).tryEvaluate(VariableSource.of(odd)),
+                    Evaluator.compile(expression).tryEvaluate(PreparedBindings.of(odd))})
+                assertEquals(EvalException.Code.CONVERSION, result.getError(), expression);
+        assertEquals(Operand.TRUE, Evaluator.compile("?one && ~?zero").evaluate(VariableSource.of(odd)));
+        assertEquals(Operand.TRUE, Evaluator.compile("?one && ~?zero").evaluate(PreparedBindings.of(odd)));
+
+        Bindings bindings = eval.newBindings();
+        for (int i = 0; i < eval.variableSlots().size(); i++) {
+            String var = eval.variableSlots().get(i);
+            Object value = typed.get(var.substring(1));
+            if (var.equals("%long"))
+                bindings.setNumber(i, 3L);
+            else if (var.equals("%double"))
+                bindings.setNumber(i, 0.5);
+            else if (var.equals("?flag"))
+                bindings.setBoolean(i, true);
+            else if (value instanceof BigDecimal)
+                bindings.setNumber(i, (BigDecimal) value);
+            else
+                bindings.setString(i, value.toString());
+        }
+        assertEquals(Operand.TRUE, eval.evaluate(bindings));
+        for (double notFinite : new double[]{Double.NaN, Double.NEGATIVE_INFINITY})
+            try {
+                bindings.setNumber(0, notFinite);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // not a NumberFormatException, that is for strings
+                assertEquals(IllegalArgumentException.class, e.getClass());
+            }
+    }
+
+    @Test
+    public void testPrimitiveModes() throws ParseException, EvalException {
+        Evaluator dbl = Evaluator.compile("%a * 2.5 + pow(%b, 2) - abs(%a)", Evaluator.Option.DOUBLE);
+        Bindings bindings = dbl.newBindings().setNumber(0, -2L).setNumber(1, 1.5);
+        assertEquals(-4.75, dbl.evaluateDouble(bindings));
+        assertEquals(0, new BigDecimal("-4.75").compareTo((BigDecimal) dbl.evaluate(bindings).getValue()));
+
+        Evaluator bool = Evaluator.compile("%a > 1 && ?f || toBool(%a - 3)", Evaluator.Option.LONG);
+        assertEquals(true, bool.evaluateBoolean(bool.newBindings().setNumber(0, 2L).setBoolean(1, true)));
+        assertEquals(false, bool.evaluateBoolean(bool.newBindings().setNumber(0, 3L).setBoolean(1, false)));
+        assertEquals(Operand.TRUE, bool.evaluate(Map.of("a", "4", "f", "0")));
+
+        Evaluator lng = Evaluator.compile("%a * %a / 2", Evaluator.Option.LONG);
+        assertEquals(8, lng.evaluateLong(lng.newBindings().setNumber(0, 4L)));
+        Evaluator big = Evaluator.compile("%a * %a / 2");
+        assertEquals(8, big.evaluateLong(big.newBindings().setNumber(0, 4L)));
+
+        for (String expression : new String[]{"%a * %a / 2", "pow(%a, 64)", "%a / 0", "%missing + 1"}) {
+            Evaluator eval = Evaluator.compile(expression, Evaluator.Option.LONG);
+            try {
+                eval.evaluate(Map.of("a", "3"));
+                fail(expression);
+            } catch (EvalException e) {
+            }
+        }
+
+        for (String[] wrong : new String[][]{{"$a + 1", "0"}, {"len($s) > 1", "4"}, {"%a == NULL", "6"},
+                {"%a == ?b", "3"}, {"%a + 1.5", "5"}, {"?b || %a - 1 * %a", "3"}})
+            try {
+                Evaluator.compile(wrong[0], Evaluator.Option.LONG);
+                fail(wrong[0]);
+            } catch (ParseException e) {
+                assertEquals(Integer.parseInt(wrong[1]), e.getErrorOffset(), wrong[0]);
+            }
+
+        // the same results in every mode, also on equal operands
+        for (String expression : new String[]{"%a > %b", "%a >= %b", "%a < %b", "%a <= %b"})
+            for (String b : new String[]{"1", "2", "3"}) {
+                Map<String, String> vars = Map.of("a", "2", "b", b);
+                Operand expected = Evaluator.compile(expression).evaluate(vars);
+                for (Evaluator.Option option : Evaluator.Option.values()) {
+                    Evaluator eval = Evaluator.compile(expression, option);
+                    assertEquals(expected, eval.evaluate(vars), expression + " " + b + " " + option);
+                    Bindings values = eval.newBindings().set(0, "2").set(1, b);
+                    assertEquals(expected == Operand.TRUE, eval.evaluateBoolean(values), expression + " " + b + " " + option);
+                }
+            }
+        // the stacks are per thread: a variable can be computed by another
+        // expression, during the evaluation
+        for (Evaluator.Option mode : new Evaluator.Option[]{Evaluator.Option.DOUBLE, Evaluator.Option.LONG}) {
+            Evaluator inner = Evaluator.compile("(%x + 1) * (%x + 1) - 1", mode);
+            Evaluator outer = Evaluator.compile("(%a + 1) * (%a + 1) + %b", mode);
+            VariableSource source = new VariableSource() {
+                @Override
+                public BigDecimal getNumber(String name) throws EvalException {
+                    return (BigDecimal) inner.evaluate(Map.of("x", name.equals("a") ? "1" : "2")).getValue();
+                }
+
+                @Override
+                public String getString(String name) {
+                    return null;
+                }
+
+                @Override
+                public Boolean getBoolean(String name) {
+                    return null;
+                }
+            };
+            // a = 3, b = 8
+            assertEquals(0, BigDecimal.valueOf(24).compareTo((BigDecimal) outer.evaluate(source).getValue()), mode.name());
+        }
+    }
+
+    @Test
+    public void testNestedEvaluation() throws ParseException, EvalException {
+        // the source evaluates another expression while the outer one is running
+        Evaluator inner = Evaluator.compile("substr($s, 1, 3) + (1 + (2 + (3 + %n)))");
+        Evaluator outer = Evaluator.compile("%x * 2 + (%y - (%x + 1)) == %x");
+        VariableSource source = new VariableSource() {
+            @Override
+            public BigDecimal getNumber(String name) {
+                try {
+                    Map<String, String> vars = new HashMap<>();
+                    vars.put("s", "a12b");
+                    vars.put("n", name.equals("x") ? "0" : "1");
+                    return new BigDecimal(inner.evaluateToString(vars));
+                } catch (EvalException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public String getString(String name) {
+                return null;
+            }
+
+            @Override
+            public Boolean getBoolean(String name) {
+                return null;
+            }
+        };
+        // x = 126, y = 127
+        assertEquals(Operand.TRUE, Evaluator.compile("%x * 2 + (%y - (%x + 1)) == 252").evaluate(source));
+        assertEquals(Operand.FALSE, outer.evaluate(source));
+    }
+
+    @Test
+    public void testBatch() throws ParseException, EvalException {
+        Evaluator eval = Evaluator.compile("%d != 0 && 10 / %d > 2 || startsWith($s, 'x') && ?f");
+        assertEquals(Arrays.asList("%d", "$s", "?f"), eval.variableSlots());
+        long[] d = {0, 2, 5, 4, 0};
+        String[] s = {"xa", "b", "x", null, "a"};
+        boolean[] f = {true, false, true, true, true};
+        Operand[] output = new Operand[5];
+        eval.evaluateBatch(new Object[]{d, s, f}, 5, output);
+        for (int row = 0; row < 5; row++) {
+            Map<String, String> vars = new HashMap<>();
+            vars.put("d", Long.toString(d[row]));
+            vars.put("s", s[row]);
+            vars.put("f", Boolean.toString(f[row]));
+            assertEquals(eval.evaluate(vars), output[row], "row " + row);
+        }
+        assertEquals(Arrays.asList(Operand.TRUE, Operand.TRUE, Operand.TRUE, Operand.TRUE, Operand.FALSE),
+                Arrays.asList(output));
+
+        Evaluator sum = Evaluator.compile("%a + 1");
+        Operand[] sums = new Operand[2];
+        sum.evaluateBatch(new Object[]{new BigDecimal[]{BigDecimal.ONE, null}}, 2, sums);
+        assertEquals(Operand.numItem(new BigDecimal(2)), sums[0]);
+        assertEquals(Operand.numItem(BigDecimal.ONE), sums[1]);
+
+        try {
+            sum.evaluateBatch(new Object[]{new String[]{"1"}}, 1, sums);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            Evaluator.compile("$a * %b").evaluateBatch(new Object[]{new String[]{"x", "y"}, new double[]{1, 2.5}}, 2, sums);
+            fail();
+        } catch (EvalException e) {
+        }
+        try {
+            sum.evaluateBatch(new Object[]{new double[]{1, Double.NaN}}, 2, sums);
+            fail();
+        } catch (EvalException e) {
+            assertEquals(EvalException.Code.CONVERSION, e.getCode());
+            assertEquals("Row 1: Variable %a is not a number", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testParallel() throws ParseException, EvalException {
+        List<Map<String, String>> records = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            Map<String, String> record = new HashMap<>();
+            record.put("n", Integer.toString(i));
+            record.put("s", i % 3 == 0 ? "fizz" : "");
+            records.add(record);
+        }
+
+        Evaluator eval = Evaluator.compile("%n rem 5 == 0 && $s == 'fizz'");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<Map<String, String>> filtered = eval.filterParallel(records, pool);
+            assertEquals(667, filtered.size());
+            for (int i = 0; i < filtered.size(); i++)
+                assertEquals(Integer.toString(i * 15), filtered.get(i).get("n"));
+
+            List<Operand> mapped = Evaluator.compile("%n * 2").mapParallel(records, pool);
+            for (int i = 0; i < records.size(); i++)
+                assertEquals(Operand.numItem(BigDecimal.valueOf(i * 2)), mapped.get(i));
+
+            records.get(7777).put("s", "x");
+            try {
+                Evaluator.compile("$s * 2.5").mapParallel(records);
+                fail();
+            } catch (EvalException e) {
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreams() throws ParseException {
+        List<Map<String, String>> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            Map<String, String> record = new HashMap<>();
+            record.put("n", Integer.toString(i));
+            // every 1000 records, one that can't be evaluated
+            record.put("s", "");
+            record.put("k", i % 1000 == 999 ? "2.5" : "2");
+            records.add(record);
+        }
+        Evaluator eval = Evaluator.compile("%n rem 2 == 0 && $s * %k == ''");
+
+        assertEquals(2500, records.stream().filter(eval.asPredicate(ErrorPolicy.SKIP, null)).count());
+        assertEquals(Operand.numItem(BigDecimal.TEN),
+                Evaluator.compile("%n * 2").asFunction().apply(records.get(5)));
+
+        Evaluator odd = Evaluator.compile("%n rem 2 == 1 && $s * %k == ''");
+        try {
+            records.stream().filter(odd.asPredicate()).count();
+            fail();
+        } catch (UncheckedEvalException e) {
+            assertEquals(EvalException.class, e.getCause().getClass());
+        }
+
+        Queue<EvaluationFailure> errors = new ConcurrentLinkedQueue<>();
+        List<Map<String, String>> filtered = odd.filter(records.spliterator(), ErrorPolicy.COLLECT, errors::add)
+                .parallel().collect(Collectors.toList());
+        assertEquals(2495, filtered.size());
+        assertEquals("1", filtered.get(0).get("n"));
+        assertEquals(5, errors.size());
+        assertEquals("2.5", errors.peek().getRecord().get("k"));
+
+        assertEquals(2495, odd.filter(records.iterator(), ErrorPolicy.SKIP, null).count());
+        Iterator<Map<String, String>> lazy = odd.filter(records.iterator(), ErrorPolicy.SKIP, null).iterator();
+        assertEquals("1", lazy.next().get("n"));
+        assertEquals("3", lazy.next().get("n"));
+
+        // no split once records are buffered, or they'd come after the split
+        Spliterator<Map<String, String>> started = odd.filter(records.spliterator(), ErrorPolicy.SKIP, null)
+                .spliterator();
+        assertTrue(started.tryAdvance(record -> assertEquals("1", record.get("n"))));
+        assertNull(started.trySplit());
+        assertEquals("3", StreamSupport.stream(started, true).collect(Collectors.toList()).get(0).get("n"));
+
+        // a failure comes after the records that matched before it, and the
+        // ones after it are still filtered
+        List<String> expected = new ArrayList<>(), matched = new ArrayList<>();
+        for (int i = 1; i < records.size(); i += 2)
+            if (i % 1000 != 999)
+                expected.add(Integer.toString(i));
+        Iterator<Map<String, String>> failing = odd.filter(records.iterator(), ErrorPolicy.FAIL, null).iterator();
+        int failures = 0;
+        while (true)
+            try {
+                if (!failing.hasNext())
+                    break;
+                matched.add(failing.next().get("n"));
+            } catch (UncheckedEvalException e) {
+                failures++;
+                // the matching records before the failure came first
+                assertEquals(failures * 499, matched.size());
+            }
+        assertEquals(5, failures);
+        assertEquals(expected, matched);
+    }
+
+    @Test
+    public void testRuleSet() throws ParseException, EvalException {
+        String[] expressions = {
+                "toNum(substr($code, 0, 3)) > 100",
+                "toNum(substr($code, 0, 3)) > 100 && %amount >= 10",
+                "toNum(substr($code, 0, 3)) * 2 + %amount",
+                "%amount < 0 && $code * 2.5 == ''",
+                "$code * 2.5 == ''",
+                "%amount >= 10 || $code * 2.5 == ''"
+        };
+        RuleSet rules = RuleSet.compile(expressions);
+        assertEquals(6, rules.size());
+        // the subexpressions in common are shared
+        int separateNodes = 0;
+        for (String expression : expressions)
+            separateNodes += RuleSet.compile(expression).nodeCount();
+        assertEquals(50, separateNodes);
+        assertEquals(22, rules.nodeCount());
+
+        Map<String, String> vars = new HashMap<>();
+        vars.put("code", "123-ABC");
+        vars.put("amount", "12");
+        RuleSet.Results results = rules.evaluate(vars);
+        for (int i = 0; i < expressions.length; i++) {
+            Operand expected;
+            try {
+                expected = Evaluator.compile(expressions[i]).evaluate(vars);
+            } catch (EvalException e) {
+                expected = null;
+            }
+            if (expected == null) {
+                try {
+                    results.get(i);
+                    fail();
+                } catch (EvalException e) {
+                }
+                assertEquals(false, results.matches(i));
+            } else
+                assertEquals(expected, results.get(i), expressions[i]);
+        }
+        assertEquals(Arrays.asList(true, true, false, false, false, true), Arrays.asList(results.matches(0),
+                results.matches(1), results.matches(2), results.matches(3), results.matches(4), results.matches(5)));
+
+        // a value that is not a number only fails the rules using it, whatever the source
+        RuleSet withBad = RuleSet.compile("%bad + 1", "1", "%bad > 0 || ?ok");
+        Map<String, String> dirty = new HashMap<>();
+        dirty.put("bad", "abc");
+        dirty.put("ok", "true");
+        for (RuleSet.Results dirtyResults : new RuleSet.Results[]{withBad.evaluate(dirty),
+                withBad.evaluate(VariableSource.of(dirty)), withBad.evaluate(PreparedBindings.of(dirty))}) {
+            try {
+                dirtyResults.get(0);
+                fail();
+            } catch (EvalException e) {
+                assertEquals(EvalException.Code.CONVERSION, e.getCode());
+            }
+            assertEquals(Operand.numItem(1), dirtyResults.get(1));
+            assertEquals(false, dirtyResults.matches(2));
+        }
+
+        try {
+            RuleSet.compile("1 + 1", "(1");
+            fail();
+        } catch (ParseException e) {
+            assertEquals(0, e.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void testRuleIndex() throws ParseException {
+        String[] countries = {"IT", "DE", "FR", "ES"};
+        List<String> expressions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String country = countries[i % countries.length];
+            switch (i % 5) {
+                case 0:
+                    expressions.add("$country == '" + country + "' && %amount > " + i);
+                    break;
+                case 1:
+                    expressions.add(i + " >= %amount && ?vip");
+                    break;
+                case 2:
+                    expressions.add("%amount <= " + i + " && ('" + country + "' == $country || ?vip)");
+                    break;
+                case 3:
+                    expressions.add("?vip == true && %amount * 2.5 < " + i);
+                    break;
+                default:
+                    expressions.add("len($country) == 2 || %amount rem " + (i % 7 + 1) + " == 0");
+            }
+        }
+        RuleIndex index = RuleIndex.compile(expressions);
+        assertEquals(200, index.size());
+        assertEquals(40, index.unindexedCount());
+
+        Random random = new Random(42);
+        for (int event = 0; event < 200; event++) {
+            Map<String, String> vars = new HashMap<>();
+            if (event % 10 != 0)
+                vars.put("country", countries[random.nextInt(countries.length)]);
+            vars.put("amount", Integer.toString(random.nextInt(220)));
+            vars.put("vip", Boolean.toString(random.nextBoolean()));
+
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < expressions.size(); i++)
+                try {
+                    if (Evaluator.compile(expressions.get(i)).evaluate(vars) == Operand.TRUE)
+                        expected.add(i);
+                } catch (EvalException e) {
+                }
+            List<Integer> actual = new ArrayList<>();
+            for (int i : index.match(vars))
+                actual.add(i);
+            assertEquals(expected, actual, vars.toString());
+        }
+    }
+
+    @Test
+    public void testCommonSubexpressions() throws ParseException, EvalException {
+        String[] expressions = {
+                "len(trim($x)) > 3 && len(trim($x)) < 10",
+                // the first occurrence may be skipped, it can't be reused
+                "?f && len(trim($x)) > 3 || len(trim($x)) == 0",
+                "len(trim($x)) == 0 || ?f && len(trim($x)) > 3",
+                "(len($x) + 1) * (len($x) + 1) + ((len($x) + 1) * (len($x) + 1)) == 2 * pow(len($x) + 1, 2)"
+        };
+        boolean[][] expected = {{true, false, false}, {true, true, true}, {true, true, true}, {true, true, true}};
+        String[] xs = {"  abcd ", "", "   "};
+        for (int i = 0; i < expressions.length; i++)
+            for (Evaluator eval : new Evaluator[]{Evaluator.compile(expressions[i]),
+                    Evaluator.compile(expressions[i], Evaluator.Option.BYTECODE)})
+                for (int j = 0; j < xs.length; j++) {
+                    Map<String, String> vars = new HashMap<>();
+                    vars.put("x", xs[j]);
+                    vars.put("f", j == 0 ? "true" : "false");
+                    assertEquals(Operand.boolItem(expected[i][j]), eval.evaluate(vars), expressions[i] + " " + j);
+                }
+
+        Evaluator eval = Evaluator.compile(expressions[2]);
+        Operand[] output = new Operand[3];
+        eval.evaluateBatch(new Object[]{xs, new boolean[]{true, false, false}}, 3, output);
+        assertEquals(Arrays.asList(Operand.TRUE, Operand.TRUE, Operand.TRUE), Arrays.asList(output));
+
+        Evaluator numeric = Evaluator.compile("(%a + 1) * (%a + 1) > 10 && (%a + 1) * (%a + 1) < 20",
+                Evaluator.Option.LONG);
+        assertEquals(true, numeric.evaluateBoolean(numeric.newBindings().setNumber(0, 3L)));
+        assertEquals(false, numeric.evaluateBoolean(numeric.newBindings().setNumber(0, 1L)));
+    }
+
+    @Test
+    public void testUserFunctions() throws ParseException, EvalException {
+        AtomicInteger pureCalls = new AtomicInteger(), impureCalls = new AtomicInteger(), memoCalls = new AtomicInteger();
+        ValuedItem.Type num = ValuedItem.Type.NUM;
+        Functions.register("clamp", num, new ValuedItem.Type[]{num, num, num}, true, 0,
+                ops -> Operand.numItem(((BigDecimal) ops[0].getValue()).max(((BigDecimal) ops[1].getValue()))
+                        .min(((BigDecimal) ops[2].getValue()))));
+        Functions.register("sum4", 4, true, ops -> {
+            BigDecimal sum = BigDecimal.ZERO;
+            for (Operand op : ops)
+                sum = sum.add((BigDecimal) op.getValue());
+            return Operand.numItem(sum);
+        });
+        Functions.register("twice", 1, true, ops -> {
+            pureCalls.incrementAndGet();
+            return Operand.numItem(((BigDecimal) ops[0].getValue()).multiply(BigDecimal.valueOf(2)));
+        });
+        Functions.register("tick", 1, false, ops -> Operand.numItem(BigDecimal.valueOf(impureCalls.incrementAndGet())));
+        Functions.register("square", num, new ValuedItem.Type[]{num}, true, 2, ops -> {
+            memoCalls.incrementAndGet();
+            return Operand.numItem(((BigDecimal) ops[0].getValue()).pow(2));
+        });
+        try {
+            for (Evaluator.Option[] options : new Evaluator.Option[][]{{}, {Evaluator.Option.BYTECODE}}) {
+                Map<String, String> vars = new HashMap<>();
+                vars.put("x", "15");
+                assertEquals(Operand.numItem(new BigDecimal(10)), Evaluator.compile("clamp(%x, 0, 10)", options).evaluate(vars));
+                assertEquals(Operand.numItem(new BigDecimal(33)), Evaluator.compile("sum4(%x, %x, 1, 2)", options).evaluate(vars));
+                assertEquals(Operand.TRUE, Evaluator.compile("clamp(twice(%x), 0, 100) - 1 == 29", options).evaluate(vars));
+
+                // folded when compiling
+                pureCalls.set(0);
+                Evaluator folded = Evaluator.compile("twice(21) + %x", options);
+                assertEquals(1, pureCalls.get());
+                assertEquals(Operand.numItem(new BigDecimal(57)), folded.evaluate(vars));
+                assertEquals(1, pureCalls.get());
+
+                // neither folded nor shared
+                impureCalls.set(0);
+                assertEquals(Operand.numItem(new BigDecimal(3)), Evaluator.compile("tick(1) + tick(1)", options).evaluate(vars));
+                assertEquals(2, impureCalls.get());
+
+                memoCalls.set(0);
+                // a value not seen by the previous loop
+                int y = options.length + 3;
+                vars.put("y", String.valueOf(y));
+                Evaluator memo = Evaluator.compile("square(%y)", options);
+                for (int i = 0; i < 3; i++)
+                    assertEquals(Operand.numItem(BigDecimal.valueOf(y * y)), memo.evaluate(vars));
+                assertEquals(1, memoCalls.get());
+
+                try {
+                    Evaluator.compile("clamp($x, 0, 10)", options).evaluate(vars);
+                    fail();
+                } catch (EvalException e) {
+                }
+            }
+
+            // the memo is shared by the evaluations, and cleared when full
+            memoCalls.set(0);
+            Evaluator memo = Evaluator.compile("square(%y)");
+            for (int y : new int[]{10, 11, 12, 10, 12}) {
+                Map<String, String> vars = Collections.singletonMap("y", String.valueOf(y));
+                assertEquals(Operand.numItem(BigDecimal.valueOf(y * y)), memo.evaluate(vars));
+            }
+            assertEquals(4, memoCalls.get());
+            for (int memoSize : new int[]{-1, 1})
+                try {
+                    Functions.register("impure", null, new ValuedItem.Type[1], false, memoSize, ops -> ops[0]);
+                    fail();
+                } catch (IllegalArgumentException e) {
+                }
+
+            Operand[] output = new Operand[2];
+            Evaluator.compile("sum4(%a, %a, 1, 2) > 6").evaluateBatch(new Object[]{new double[]{1, 2}}, 2, output);
+            assertEquals(Arrays.asList(Operand.FALSE, Operand.TRUE), Arrays.asList(output));
+
+            assertEquals(2, RuleSet.compile("tick(%a) > 0 && tick(%a) > 0").nodeCount()
+                    - RuleSet.compile("sum4(%a, 0, 0, 0) > 0 && sum4(%a, 0, 0, 0) > 0").nodeCount());
+
+            testFailCompilation("clamp(1, 2)");
+            try {
+                Evaluator.compile("twice(%a)", Evaluator.Option.LONG);
+                fail();
+            } catch (ParseException e) {
+            }
+            for (String name : new String[]{"len", "true", "NULL", "1st", "a-b"})
+                try {
+                    Functions.register(name, 1, true, ops -> ops[0]);
+                    fail(name);
+                } catch (IllegalArgumentException e) {
+                }
+        } finally {
+            for (String name : new String[]{"clamp", "sum4", "twice", "tick", "square"})
+                Functions.unregister(name);
+        }
+        testFailCompilation("twice(1)");
+    }
+
+    @Test
+    public void testSerialization() throws ParseException, EvalException, IOException {
+        String[] expressions = {
+                "len(trim($x)) > 3 && len(trim($x)) < 10 || $x == '3citt\u00e0'",
+                "(toNum(substr($x, 0, 1))) * -1.25 + %n / 8 >= 100 || ?f",
+                "(%n + 1) * (%n + 1) + 12345678901234567890.0001 != NULL && ~?f",
+                "twice(%n) > 4"
+        };
+        Functions.register("twice", 1, true,
+                ops -> Operand.numItem(((BigDecimal) ops[0].getValue()).multiply(BigDecimal.valueOf(2))));
+        try {
+            // one after the other in the same stream
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String expression : expressions)
+                Evaluator.compile(expression).writeTo(out);
+            ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+            for (String expression : expressions) {
+                Evaluator original = Evaluator.compile(expression);
+                Evaluator loaded = Evaluator.readFrom(in);
+                assertEquals(original.variableSlots(), loaded.variableSlots());
+                ByteArrayOutputStream again = new ByteArrayOutputStream();
+                loaded.writeTo(again);
+                Evaluator bytecode = Evaluator.readFrom(ByteBuffer.wrap(again.toByteArray()), Evaluator.Option.BYTECODE);
+                for (String x : new String[]{"7 abcd ", "3citt\u00e0", "9"})
+                    for (String n : new String[]{"1", "2.5", "-700"}) {
+                        Map<String, String> vars = new HashMap<>();
+                        vars.put("x", x);
+                        vars.put("n", n);
+                        vars.put("f", "false");
+                        Operand expected = original.evaluate(vars);
+                        assertEquals(expected, loaded.evaluate(vars), expression);
+                        assertEquals(expected, bytecode.evaluate(vars), expression);
+                    }
+            }
+            assertEquals(0, in.remaining());
+        } finally {
+            Functions.unregister("twice");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Evaluator.compile("%a + 1 > 2").writeTo(out);
+        byte[] bytes = out.toByteArray();
+        for (byte[] wrong : new byte[][]{Arrays.copyOf(bytes, bytes.length - 1), Arrays.copyOfRange(bytes, 1, bytes.length)})
+            try {
+                Evaluator.readFrom(ByteBuffer.wrap(wrong));
+                fail();
+            } catch (ParseException e) {
+            }
+        // a tampered program is rejected when loading, or fails only as
+        // the operations would: never out of its stack
+        out.reset();
+        Evaluator.compile("?f && %a > 1 || (%a + 1) * (%a + 1) > 3").writeTo(out);
+        bytes = out.toByteArray();
+        Map<String, String> values = new HashMap<>();
+        values.put("a", "2");
+        values.put("f", "true");
+        int loaded = 0;
+        for (int i = 5; i < bytes.length; i++)
+            for (int delta : new int[]{1, -1, 2, 0x40}) {
+                byte[] tampered = bytes.clone();
+                tampered[i] += delta;
+                Evaluator evaluator;
+                try {
+                    evaluator = Evaluator.readFrom(ByteBuffer.wrap(tampered));
+                } catch (ParseException e) {
+                    continue;
+                }
+                loaded++;
+                for (Evaluator.Option[] options : new Evaluator.Option[][]{{}, {Evaluator.Option.BYTECODE}})
+                    try {
+                        Evaluator.readFrom(ByteBuffer.wrap(tampered), options).evaluate(values);
+                    } catch (EvalException e) {
+                    } catch (IndexOutOfBoundsException | NullPointerException | IllegalArgumentException e) {
+                        fail("Byte " + i + " + " + delta, e);
+                    } catch (RuntimeException e) {
+                        // f.e. MIN on a number and a string, as when parsed
+                    }
+            }
+        assertNotEquals(0, loaded);
+        byte[] deeper = bytes.clone();
+        deeper[5]++;
+        try {
+            Evaluator.readFrom(ByteBuffer.wrap(deeper));
+            fail();
+        } catch (ParseException e) {
+        }
+        // counts that can't fit in the buffer are rejected before allocating
+        // (here, the variables: -1 and the max int), as are ints longer than 5
+        // bytes (here, the stack size, with 5 more bytes adding 0)
+        byte[][] corrupted = new byte[3][];
+        for (int i = 0; i < 2; i++) {
+            out.reset();
+            out.write(bytes, 0, 7);
+            out.write(new byte[]{-1, -1, -1, -1, (byte) (i == 0 ? 0x0F : 0x07)});
+            out.write(bytes, 8, bytes.length - 8);
+            corrupted[i] = out.toByteArray();
+        }
+        out.reset();
+        out.write(bytes, 0, 5);
+        out.write(new byte[]{(byte) (bytes[5] | 0x80), -128, -128, -128, -128, 0});
+        out.write(bytes, 6, bytes.length - 6);
+        corrupted[2] = out.toByteArray();
+        for (byte[] wrong : corrupted)
+            try {
+                Evaluator.readFrom(ByteBuffer.wrap(wrong));
+                fail();
+            } catch (ParseException e) {
+            }
+        // ?f && (?g && ?g) with the Load after the AND: the Store can be jumped
+        // over, so the local may be read before being written
+        out.reset();
+        out.write(bytes, 0, 5);
+        int bool = ValuedItem.Type.BOOL.ordinal();
+        out.write(new byte[]{2, 1, 2, (byte) bool, 1, 'f', (byte) bool, 1, 'g', 0, 1, 3, 'A', 'N', 'D',
+                7, 1, 0, 5, 5, 1, 1, 6, 0, 2, 0, 7, 0, 2, 0});
+        try {
+            Evaluator.readFrom(ByteBuffer.wrap(out.toByteArray()));
+            fail();
+        } catch (ParseException e) {
+            assertEquals("Corrupted compiled expression: local read before written", e.getMessage());
+        }
+
+        // the functions must be registered again
+        out.reset();
+        Functions.register("twice", 1, true, ops -> ops[0]);
+        try {
+            Evaluator.compile("twice(%a) > 4").writeTo(out);
+        } finally {
+            Functions.unregister("twice");
+        }
+        try {
+            Evaluator.readFrom(ByteBuffer.wrap(out.toByteArray()));
+            fail();
+        } catch (ParseException e) {
+        }
+    }
+
+    @Test
+    public void testOperandCache() throws ParseException, EvalException {
+        // small integers are shared, whatever their scale
+        assertSame(Operand.numItem(5), Operand.numItem(new BigDecimal("5.00")));
+        assertSame(Operand.numItem(1000), Operand.numItem(new BigDecimal("1E+3")));
+        assertSame(Operand.numItem(-128), Operand.numItem(BigDecimal.valueOf(-128)));
+        Map<String, String> vars = new HashMap<>();
+        vars.put("s", "hello");
+        assertSame(Operand.numItem(5), Evaluator.compile("len($s)").evaluate(vars));
+        assertSame(Operand.numItem(1), Evaluator.compile("sig(len($s))", Evaluator.Option.BYTECODE).evaluate(vars));
+
+        for (String num : new String[]{"100000", "-129", "1024", "2.5", "12345678901234567890", "0.1"}) {
+            Operand a = Operand.numItem(new BigDecimal(num)), b = Operand.numItem(new BigDecimal(num).setScale(3));
+            assertEquals(a, b, num);
+            assertEquals(a.hashCode(), b.hashCode(), num);
+            assertEquals(new BigDecimal(num).compareTo((BigDecimal) a.getValue()), 0, num);
+        }
+        assertNotEquals(Operand.strItem("1"), Operand.numItem(1));
+        assertNotEquals(Operand.NULL, Operand.FALSE);
+    }
+
+    @Test
+    public void testPreparedBindings() throws ParseException, EvalException {
+        AtomicInteger lookups = new AtomicInteger();
+        Map<String, Object> event = new HashMap<String, Object>() {
+            @Override
+            public Object get(Object key) {
+                lookups.incrementAndGet();
+                return super.get(key);
+            }
+        };
+        event.put("a", "12");
+        event.put("b", 3L);
+        event.put("f", "true");
+        String[] expressions = {"%a + %b > 14 && ?f", "len($a) == 2 && %a * 2 == 24", "%a - %b", "$c == NULL"};
+        PreparedBindings bindings = PreparedBindings.of(event);
+        for (String expression : expressions) {
+            Evaluator eval = Evaluator.compile(expression);
+            assertEquals(eval.evaluate(VariableSource.of(event)), eval.evaluate(bindings), expression);
+            assertEquals(eval.evaluate(VariableSource.of(event)), Evaluator.compile(expression, Evaluator.Option.BYTECODE)
+                    .evaluate(bindings), expression);
+        }
+        lookups.set(0);
+        for (String expression : expressions)
+            Evaluator.compile(expression).evaluate(bindings);
+        RuleSet.compile(expressions).evaluate(bindings);
+        assertEquals(0, lookups.get());
+
+        // each value is converted once per type
+        PreparedBindings fresh = PreparedBindings.of(event);
+        for (String expression : expressions)
+            Evaluator.compile(expression).evaluate(fresh);
+        assertEquals(5, lookups.get());
+
+        Map<String, String> vars = new HashMap<>();
+        vars.put("a", "12");
+        vars.put("b", "3");
+        assertEquals(Arrays.toString(RuleIndex.compile(expressions).match(vars)),
+                Arrays.toString(RuleIndex.compile(expressions).match(PreparedBindings.of(vars))));
+
+        // a value that is not a number fails the expressions using it, not the others
+        vars.put("bad", "abc");
+        vars.put("x", "y");
+        try {
+            Evaluator.compile("%bad > 3").evaluate(PreparedBindings.of(vars));
+            fail();
+        } catch (EvalException e) {
+            assertEquals(EvalException.Code.CONVERSION, e.getCode());
+        }
+        RuleIndex index = RuleIndex.compile("%bad > 3", "$x == 'y'", "%bad == 1 || %a == 12");
+        assertEquals("[1]", Arrays.toString(index.match(vars)));
+        assertEquals("[1]", Arrays.toString(index.match(PreparedBindings.of(vars))));
+    }
+
+    @Test
+    public void testMetrics() throws ParseException, EvalException {
+        EvaluationMetrics global = new EvaluationMetrics();
+        Evaluator.setDefaultListener(global);
+        Evaluator eval;
+        try {
+            eval = Evaluator.compile("$s * %a");
+            Evaluator.compile("%a + 1", Evaluator.Option.LONG);
+        } finally {
+            Evaluator.setDefaultListener(null);
+        }
+        assertEquals(2, global.getCompilations());
+        // not instrumented after the default was removed
+        Evaluator.compile("%a").evaluate();
+        assertEquals(2, global.getCompilations());
+        assertEquals(0, global.getEvaluations());
+
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        eval.setListener(metrics);
+        for (int i = 0; i < 10; i++) {
+            Map<String, String> vars = new HashMap<>();
+            vars.put("s", "x");
+            vars.put("a", i % 5 == 0 ? "2.5" : "2");
+            try {
+                eval.evaluate(vars);
+            } catch (EvalException e) {
+            }
+        }
+        assertEquals(10, metrics.getEvaluations());
+        assertEquals(2, metrics.getErrors());
+        assertEquals(Collections.singletonMap(EvalException.Code.INVALID_OPERANDS, 2L), metrics.getErrorsByCode());
+        assertEquals(10, metrics.getLatencies().count());
+        assertEquals(0, global.getEvaluations());
+        metrics.reset();
+        assertEquals(0, metrics.getEvaluations());
+        assertEquals(0, metrics.getErrorsByCode().size());
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++)
+            histogram.record(i * 1000);
+        assertEquals(1000, histogram.count());
+        for (double percent : new double[]{1, 50, 99, 100}) {
+            long exact = (long) (percent * 10) * 1000, found = histogram.percentile(percent);
+            assertEquals(true, found >= exact && found <= exact * 1.125, percent + ": " + found);
+        }
+        histogram.record(0);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.percentile(100));
+        assertEquals(0, new LatencyHistogram().percentile(50));
+    }
+
+    @Test
+    public void testProfile() throws ParseException, EvalException, IOException {
+        assertEquals(null, Evaluator.compile("%a + 1").getProfile());
+        OperatorProfile.global().reset();
+        Evaluator first = Evaluator.compile("pow(%a, 2) + len($s) > 3", Evaluator.Option.PROFILE, Evaluator.Option.BYTECODE);
+        Evaluator second = Evaluator.compile("%a + 1", Evaluator.Option.PROFILE);
+        // it would change the results of the primitive modes
+        for (Evaluator.Option mode : new Evaluator.Option[]{Evaluator.Option.DOUBLE, Evaluator.Option.LONG})
+            try {
+                Evaluator.compile("1 / 3", mode, Evaluator.Option.PROFILE);
+                fail();
+            } catch (IllegalArgumentException e) {
+            }
+        Map<String, String> vars = new HashMap<>();
+        vars.put("a", "3");
+        vars.put("s", "abc");
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Operand.TRUE, first.evaluate(vars));
+            assertEquals(Operand.numItem(4), second.evaluate(vars));
+        }
+
+        Map<String, OperatorProfile.Counts> profile = first.getProfile().snapshot();
+        assertEquals(new TreeSet<>(Arrays.asList("ADD", "GREATER", "LENGTH", "POWER", OperatorProfile.VARIABLES)),
+                profile.keySet());
+        assertEquals(5, profile.get("POWER").getInvocations());
+        assertEquals(10, profile.get(OperatorProfile.VARIABLES).getInvocations());
+        Map<String, OperatorProfile.Counts> global = OperatorProfile.global().snapshot();
+        assertEquals(10, global.get("ADD").getInvocations());
+        assertEquals(15, global.get(OperatorProfile.VARIABLES).getInvocations());
+        assertEquals(true, global.get("ADD").getNanos() >= profile.get("ADD").getNanos());
+
+        first.getProfile().reset();
+        assertEquals(0, first.getProfile().snapshot().size());
+        assertEquals(10, OperatorProfile.global().snapshot().get("ADD").getInvocations());
+
+        // saved without the instrumentation
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        first.writeTo(out);
+        assertEquals(Operand.TRUE, Evaluator.readFrom(ByteBuffer.wrap(out.toByteArray())).evaluate(vars));
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        Path file = Files.createTempFile("qwak", ".jfr");
+        Evaluator eval;
+        try (Recording recording = new Recording()) {
+            recording.enable("qwak.Compile");
+            recording.enable("qwak.Evaluate").withThreshold(Duration.ZERO);
+            recording.enable("qwak.EvalError");
+            recording.start();
+            eval = Evaluator.compile("$s * %a");
+            Map<String, String> vars = new HashMap<>();
+            vars.put("s", "x");
+            vars.put("a", "2");
+            eval.evaluate(vars);
+            vars.put("a", "2.5");
+            try {
+                eval.evaluate(vars);
+                fail();
+            } catch (EvalException e) {
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+        try {
+            Map<String, List<RecordedEvent>> events = RecordingFile.readAllEvents(file).stream()
+                    .collect(Collectors.groupingBy(e -> e.getEventType().getName()));
+            RecordedEvent compile = events.get("qwak.Compile").get(0);
+            assertEquals(eval.getId(), compile.getLong("expressionId"));
+            assertEquals(7, compile.getInt("expressionLength"));
+            assertEquals(3, compile.getInt("tokenCount"));
+            assertEquals(1, events.get("qwak.Evaluate").size());
+            assertEquals("STRING", events.get("qwak.Evaluate").get(0).getString("resultType"));
+            assertEquals(eval.getId(), events.get("qwak.EvalError").get(0).getLong("expressionId"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testTypeInference() throws ParseException, EvalException, IOException {
+        // only rejected when strict, otherwise they fail at evaluation
+        for (String[] wrong : new String[][]{{"1 && 2", "2"}, {"%a && true", "3"}, {"$s - 1", "3"},
+                {"len(toNum($s)) > 1", "0"}, {"toNum($s) + 1 && ?b", "14"}, {"min(1, %a) > len(toNum(?b))", "13"},
+                {"false && (1 && 2)", "12"}}) {
+            Evaluator.compile(wrong[0]);
+            try {
+                Evaluator.compile(wrong[0], Evaluator.Option.STRICT);
+                fail(wrong[0]);
+            } catch (ParseException e) {
+                assertEquals(Integer.parseInt(wrong[1]), e.getErrorOffset(), wrong[0]);
+            }
+        }
+        for (String right : new String[]{"$s + 1", "toNum($s) - 1", "?b && %a > 1", "%a + NULL", "min($s, NULL) == NULL",
+                "toString(%a) + $s > 'x'"})
+            Evaluator.compile(right, Evaluator.Option.STRICT);
+
+        ValuedItem.Type num = ValuedItem.Type.NUM;
+        Functions.register("half", num, new ValuedItem.Type[]{num}, true, 0,
+                ops -> Operand.numItem(((BigDecimal) ops[0].getValue()).divide(BigDecimal.valueOf(2))));
+        try {
+            Evaluator.compile("half(%a + 1) + half(NULL)", Evaluator.Option.STRICT);
+            try {
+                Evaluator.compile("half(toString(%a))", Evaluator.Option.STRICT);
+                fail();
+            } catch (ParseException e) {
+            }
+        } finally {
+            Functions.unregister("half");
+        }
+
+        // the operations on operands of a single type give the same results
+        // as the generic ones (on operands of unknown type), also when an
+        // operand is NULL
+        Functions.register("any", 1, true, ops -> ops[0]);
+        String[] expressions = {"%a + %b", "%a - %b", "%a * %b", "%a / %b", "%a rem %b", "min(%a, %b)", "max(%a, %b)",
+                "%a > %b", "%a >= %b", "%a < %b", "%a <= %b", "$s + $t", "$s > $t", "$s >= $t", "$s < $t", "$s <= $t",
+                "max($s, $t)"};
+        String[] values = {"2", "-0.5", "abc", null};
+        for (String expression : expressions) {
+            Evaluator interpreted = Evaluator.compile(expression);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            interpreted.writeTo(out);
+            Evaluator[] evaluators = {interpreted, Evaluator.compile(expression, Evaluator.Option.BYTECODE),
+                    Evaluator.readFrom(ByteBuffer.wrap(out.toByteArray()))};
+            for (String first : values)
+                for (String second : values) {
+                    boolean nums = !"abc".equals(first) && !"abc".equals(second);
+                    if (expression.contains("%") && !nums)
+                        continue;
+                    Map<String, String> vars = new HashMap<>();
+                    vars.put(expression.contains("%") ? "a" : "s", first);
+                    vars.put(expression.contains("%") ? "b" : "t", second);
+                    Operand expected;
+                    try {
+                        expected = Evaluator.compile(expression.replace("%a", "any(%a)").replace("$s", "any($s)"))
+                                .evaluate(vars);
+                    } catch (EvalException e) {
+                        expected = null;
+                    }
+                    for (Evaluator evaluator : evaluators)
+                        try {
+                            assertEquals(expected, evaluator.evaluate(vars), expression + " " + vars);
+                        } catch (EvalException e) {
+                            assertEquals(null, expected, expression + " " + vars);
+                        }
+                }
+        }
+        Functions.unregister("any");
+
+        // profiled under the generic names
+        Evaluator profiled = Evaluator.compile("%a * %b + 1", Evaluator.Option.PROFILE);
+        Map<String, String> vars = new HashMap<>();
+        vars.put("a", "3");
+        vars.put("b", "4");
+        assertEquals(Operand.numItem(13), profiled.evaluate(vars));
+        assertEquals(new TreeSet<>(Arrays.asList("ADD", "MULTIPLY", OperatorProfile.VARIABLES)),
+                profiled.getProfile().snapshot().keySet());
+    }
+
+    @Test
+    public void testEvalResult() throws ParseException, EvalException {
+        for (Evaluator.Option[] options : new Evaluator.Option[][]{{}, {Evaluator.Option.BYTECODE}}) {
+            Evaluator expr = Evaluator.compile("(toNum($s)) / %d > 1 || substr($s, %d, 3) == 'x'", options);
+            String[][] cases = {
+                    {"10", "2", null},
+                    {"10", "0", "ARITHMETIC"},
+                    {"10", "3", "ARITHMETIC"},
+                    {"1e", "2", "CONVERSION"},
+                    {"10", "two", "CONVERSION"},
+                    {"0", "2.5", "INVALID_OPERANDS"}
+            };
+            for (String[] c : cases) {
+                Map<String, String> vars = new HashMap<>();
+                vars.put("s", c[0]);
+                vars.put("d", c[1]);
+                EvalResult result = expr.tryEvaluate(vars);
+                assertEquals(c[2] == null, result.isOk(), Arrays.toString(c));
+                if (c[2] == null) {
+                    assertSame(Operand.TRUE, result.getValue());
+                    assertSame(result, expr.tryEvaluate(vars));
+                    continue;
+                }
+                assertEquals(c[2], result.getError().name(), Arrays.toString(c));
+                assertEquals(null, result.getValue());
+                try {
+                    expr.evaluate(vars);
+                    fail(Arrays.toString(c));
+                } catch (EvalException e) {
+                    assertEquals(result.getError(), e.getCode());
+                    assertEquals(result.getMessage(), e.getMessage());
+                    // cheap to create
+                    assertEquals(0, e.getStackTrace().length);
+                }
+                try {
+                    result.get();
+                    fail();
+                } catch (EvalException e) {
+                    assertEquals(result.getMessage(), e.getMessage());
+                }
+            }
+        }
+
+        // every overload returns the failures of the conversions
+        Evaluator bad = Evaluator.compile("%bad + 1", Evaluator.Option.BYTECODE);
+        Map<String, String> dirty = Collections.singletonMap("bad", "abc");
+        for (EvalResult failed : new EvalResult[]{bad.tryEvaluate(dirty), bad.tryEvaluate(VariableSource.of(dirty)),
+                bad.tryEvaluate(PreparedBindings.of(dirty))}) {
+            assertEquals(EvalException.Code.CONVERSION, failed.getError());
+            assertEquals("Variable %bad is not a number", failed.getMessage());
+        }
+        Map<String, String> clean = Collections.singletonMap("bad", "2");
+        for (EvalResult ok : new EvalResult[]{bad.tryEvaluate(clean), bad.tryEvaluate(VariableSource.of(clean)),
+                bad.tryEvaluate(PreparedBindings.of(clean)), bad.tryEvaluate(bad.newBindings().set(0, "2"))})
+            assertEquals(Operand.numItem(3), ok.get());
+
+        EvalResult result = Evaluator.compile("pow(%a, -1)").tryEvaluate(Collections.singletonMap("a", "2"));
+        assertEquals(EvalException.Code.ARITHMETIC, result.getError());
+        Evaluator expr = Evaluator.compile("%a rem %b");
+        assertEquals(Operand.numItem(1), expr.tryEvaluate(expr.newBindings().set(0, "7").set(1, "3")).get());
+        assertEquals(EvalException.Code.ARITHMETIC, expr.tryEvaluate(expr.newBindings().set(0, "7").set(1, "0")).getError());
+        try {
+            expr.newBindings().set(0, "seven");
+            fail();
+        } catch (NumberFormatException e) {
+        }
+    }
+
     @Test
     public void testWrongNumOfOperands() {
         testFailCompilation("(5*2)8");
     }
 
+    @Test
+    public void testLexer() throws ParseException, EvalException {
+        testTruth("1 - -1 == 2");
+        testTruth("- 1 + 3 == 2");
+        testTruth("-.5 * 2 == -1");
+        testTruth("1e2 == 100");
+        // a number ends at the first letter, that isn't an exponent
+        testTruth("5rem 3 == 2");
+        testTruth("2max 3 == 3");
+        testTruth("1E+2rem 7 == 2");
+        testTruth("%m-1 == -2");
+        testTruth("\"a\\\"b\" == 'a\"b'");
+        testTruth("len('it\\'s') == 4");
+        testTruth("%c>=2 && %c<=2 && %c!=1");
+
+        // more than 10 string variables
+        testTruth("$a+$b+$c+$d+$g+$h+$i+$j+$k+$l+$m == \"012d0.5hstringastrrinnga-1\"");
+    }
+
+    @Test
+    public void testParseErrorOffsets() {
+        assertErrorOffset("(5*2)8", 5);
+        assertErrorOffset("1 + (2 * 3", 4);
+        assertErrorOffset("1 + 2) * 3", 5);
+        assertErrorOffset("1 + 'abc", 4);
+        assertErrorOffset("1 + foo(2)", 4);
+        assertErrorOffset("%a + 1.2.3", 5);
+        assertErrorOffset("%a + 12abc", 7);
+        assertErrorOffset("%a + 1e", 6);
+        assertErrorOffset("%a & %b", 3);
+        assertErrorOffset("1 + $", 4);
+        assertErrorOffset("1 +", 2);
+        assertErrorOffset("2, 3", 1);
+    }
+
+    private void assertErrorOffset(String expression, int offset) {
+        try {
+            Evaluator.compile(expression);
+            fail();
+        } catch (ParseException e) {
+            assertEquals(offset, e.getErrorOffset(), e.getMessage());
+        }
+    }
+
     private void testTruth(String expression) throws ParseException, EvalException {
-        Evaluator eval = Evaluator.compile(expression);
-        assertEquals(eval.evaluate(variables), Operand.TRUE);
+        assertEquals(eval(expression), Operand.TRUE);
     }
 
     private void testFalseness(String expression) throws ParseException, EvalException {
-        Evaluator eval = Evaluator.compile(expression);
-        assertEquals(eval.evaluate(variables), Operand.FALSE);
+        assertEquals(eval(expression), Operand.FALSE);
+    }
+
+    private void testFailEvaluation(String expression) throws ParseException {
+        for (Evaluator eval : new Evaluator[]{Evaluator.compile(expression),
+                Evaluator.compile(expression, Evaluator.Option.BYTECODE)}) {
+            try {
+                eval.evaluate(variables);
+                fail();
+            } catch (EvalException e) {
+            }
+        }
     }
 
     private void testFailCompilation(String expression) {
@@ -0,0 +1,82 @@
+import eu.germanorizzo.proj.qwak.Evaluator;
+import eu.germanorizzo.proj.qwak.EvaluatorCache;
+import eu.germanorizzo.proj.qwak.internals.EvalException;
+import eu.germanorizzo.proj.qwak.internals.Operand;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestEvaluatorCache {
+    @Test
+    public void testHitsAndMisses() throws ParseException, EvalException {
+        EvaluatorCache cache = new EvaluatorCache(10);
+        Evaluator eval = cache.get("1 + 2");
+        assertSame(eval, cache.get("1 + 2"));
+        assertEquals(Operand.numItem(new BigDecimal(3)), eval.evaluate());
+        cache.get("2 + 2");
+
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+
+        cache.invalidate("1 + 2");
+        assertNotSame(eval, cache.get("1 + 2"));
+    }
+
+    @Test
+    public void testEviction() throws ParseException {
+        EvaluatorCache cache = new EvaluatorCache(3);
+        Evaluator hot = cache.get("0");
+        for (int i = 1; i <= 10; i++) {
+            assertSame(hot, cache.get("0"));
+            cache.get(Integer.toString(i));
+        }
+
+        assertEquals(3, cache.size());
+        assertEquals(8, cache.getEvictions());
+        // the expression that is always used is not evicted
+        assertSame(hot, cache.get("0"));
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        EvaluatorCache cache = new EvaluatorCache(3);
+        for (int i = 0; i < 2; i++)
+            assertThrows(ParseException.class, () -> cache.get("1 +"));
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        EvaluatorCache cache = new EvaluatorCache(100);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Evaluator>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++)
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return cache.get("len(trim($x)) > 3 && len(trim($x)) < 10");
+                }));
+            start.countDown();
+
+            Set<Evaluator> evaluators = ConcurrentHashMap.newKeySet();
+            for (Future<Evaluator> future : futures)
+                evaluators.add(future.get());
+
+            assertEquals(1, evaluators.size());
+            assertEquals(1, cache.getMisses());
+            assertEquals(63, cache.getHits());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}